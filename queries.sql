@@ -1,48 +1,38 @@
 -- isLabPopular
-SELECT COUNT(*)
-FROM vaccines_labs_view vl
-WHERE vl.lab_id = 30
-AND vl.vaccine_productivity < 20;
+SELECT s.unproductive_vaccines
+FROM lab_vaccine_stats s
+WHERE s.lab_id = 30;
 
 -- getTotalWages
-SELECT COALESCE(SUM(salary), 0)
-FROM employees
-JOIN employees_labs el ON employees.id = el.employee_id
-JOIN labs l ON el.lab_id = l.id
-WHERE l.active = TRUE
-AND l.id = 17;
+SELECT CASE WHEN w.active THEN w.total_wages ELSE 0 END
+FROM lab_wage_totals w
+WHERE w.lab_id = 17;
 
 -- getBestLab
-SELECT elv.lab_id
- FROM employees_labs_view elv
-WHERE elv.employee_city = elv.lab_city
-GROUP BY elv.lab_id
-ORDER BY count(elv.employee_id) DESC,elv.lab_id;
+SELECT s.lab_id
+FROM lab_same_city_counts s
+ORDER BY s.employees DESC, s.lab_id ASC
+LIMIT 1;
 
 -- getMostPopularCity
-SELECT elv.employee_city
-FROM employees_labs_view elv
-GROUP BY elv.employee_city
-ORDER BY count(elv.employee_city) DESC
+SELECT c.city
+FROM city_employment_counts c
+ORDER BY c.employments DESC, c.city DESC
 LIMIT 1;
 
 -- getPopularLabs
-SELECT l.id
-FROM labs l
-WHERE l.id NOT IN (
-    SELECT vlv.lab_id
-    FROM vaccines_labs_view vlv
-    WHERE vlv.vaccine_productivity < 20
-)
-AND l.id IN (SELECT vlv2.lab_id FROM vaccines_labs_view vlv2)
-ORDER BY l.id
+SELECT s.lab_id
+FROM lab_vaccine_stats s
+WHERE s.vaccines > 0
+AND s.unproductive_vaccines = 0
+ORDER BY s.lab_id
 LIMIT 3;
 
 
 -- getMostRatedVaccines
 SELECT v.id
 FROM vaccines v
-ORDER BY (v.stock + v.productivity - v.cost) DESC, id
+ORDER BY (v.stock::bigint + v.productivity - v.cost) DESC, v.id
 LIMIT 10;
 
 -- getCloseEmployees
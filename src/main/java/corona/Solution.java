@@ -2,28 +2,53 @@ package corona;
 
 
 import corona.business.Employee;
+import corona.business.EmployeeLab;
+import corona.business.Freshness;
 import corona.business.Lab;
 import corona.business.ReturnValue;
 import corona.business.Vaccine;
+import corona.business.VaccineLab;
+import corona.business.VaccineState;
+import corona.data.ChangeListener;
+import corona.data.CloseEmployeesIndex;
 import corona.data.DBConnector;
+import corona.data.EntityCache;
+import corona.data.KeysetScanner;
 import corona.data.PostgreSQLErrorCodes;
+import corona.data.SalesLedger;
+import corona.data.SummaryTables;
+import corona.data.UnitOfWork;
+import corona.data.VaccineFunctions;
+import corona.data.VaccineWriteBehind;
+import corona.data.ViewRefresher;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 
 import static corona.business.ReturnValue.*;
 
 
 public class Solution {
 
+    private static final EntityCache<Lab> labCache = new EntityCache<>("labs", Solution::copyLab);
+    private static final EntityCache<Employee> employeeCache = new EntityCache<>("employees", Solution::copyEmployee);
+    private static final EntityCache<Vaccine> vaccineCache = new EntityCache<>("vaccines", Solution::copyVaccine);
+
     ////////////////////////////////
     // Basic database methods
     ////////////////////////////////
 
     public static void createTables() {
-        try {
-
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             assert connection != null;
 
             PreparedStatement createLabsStatement = connection.prepareStatement(
@@ -68,6 +93,15 @@ public class Solution {
             createVaccineStatement.executeUpdate();
             createVaccineStatement.closeOnCompletion();
 
+            // lets getMostRatedVaccines read the top of the ranking instead of sorting the whole table;
+            // in bigint, as stock near the integer limit would overflow the sum
+            PreparedStatement createVaccineRatingIndexStatement = connection.prepareStatement(
+                    "CREATE INDEX vaccines_rating_idx " +
+                        "ON vaccines ((stock::bigint + productivity - cost) DESC, id)"
+            );
+            createVaccineRatingIndexStatement.executeUpdate();
+            createVaccineRatingIndexStatement.closeOnCompletion();
+
             PreparedStatement createEmployeeLabsStatement = connection.prepareStatement(
                     "CREATE TABLE employees_labs (" +
                         "   employee_id integer REFERENCES employees(id)," +
@@ -75,20 +109,38 @@ public class Solution {
                         "   salary integer NOT NULL," +
                         "   constraint salary_nonnegative check (salary >= 0)," +
                         "   PRIMARY KEY (employee_id, lab_id)" +
-                        ")"
+                        ")" + partitionByLab()
             );
             createEmployeeLabsStatement.executeUpdate();
             createEmployeeLabsStatement.closeOnCompletion();
+            createLabPartitions(connection, "employees_labs");
 
             PreparedStatement createVaccinesLabsStatement = connection.prepareStatement(
                     "CREATE TABLE vaccines_labs (" +
                         "   vaccine_id integer REFERENCES vaccines(id)," +
                         "   lab_id integer REFERENCES labs(id)," +
                         "   PRIMARY KEY (vaccine_id, lab_id)" +
-                        ")"
+                        ")" + partitionByLab()
             );
             createVaccinesLabsStatement.executeUpdate();
             createVaccinesLabsStatement.closeOnCompletion();
+            createLabPartitions(connection, "vaccines_labs");
+
+            // the primary keys only cover lookups by the first key column, see IndexPlanTest
+            String[] createIndexStatements = {
+                    // getTotalWages, getBestLab and getCloseEmployees go from a lab to its employees
+                    "CREATE INDEX employees_labs_lab_idx ON employees_labs (lab_id)",
+                    // vaccines_labs_view lookups from a lab to its vaccines
+                    "CREATE INDEX vaccines_labs_lab_idx ON vaccines_labs (lab_id)",
+                    // getCloseEmployees and getBestLab match labs and employees by city
+                    "CREATE INDEX labs_city_idx ON labs (city)",
+                    "CREATE INDEX employees_city_idx ON employees (city)"
+            };
+            for (String createIndex : createIndexStatements) {
+                PreparedStatement createIndexStatement = connection.prepareStatement(createIndex);
+                createIndexStatement.executeUpdate();
+                createIndexStatement.closeOnCompletion();
+            }
 
             PreparedStatement createVaccinesLabsViewStatement = connection.prepareStatement(
                     "CREATE OR REPLACE VIEW public.vaccines_labs_view " +
@@ -132,44 +184,109 @@ public class Solution {
             createEmployeesLabsViewStatement.executeUpdate();
             createEmployeesLabsViewStatement.closeOnCompletion();
 
-            connection.close();
+            for (String summaryStatement : SummaryTables.createStatements()) {
+                PreparedStatement createSummaryStatement = connection.prepareStatement(summaryStatement);
+                createSummaryStatement.executeUpdate();
+                createSummaryStatement.closeOnCompletion();
+            }
+
+            for (String ledgerStatement : SalesLedger.createStatements()) {
+                PreparedStatement createLedgerStatement = connection.prepareStatement(ledgerStatement);
+                createLedgerStatement.executeUpdate();
+                createLedgerStatement.closeOnCompletion();
+            }
+
+            for (String functionStatement : VaccineFunctions.createStatements()) {
+                PreparedStatement createFunctionStatement = connection.prepareStatement(functionStatement);
+                createFunctionStatement.executeUpdate();
+                createFunctionStatement.closeOnCompletion();
+            }
+
+            for (String triggerStatement : ChangeListener.createStatements()) {
+                PreparedStatement createTriggerStatement = connection.prepareStatement(triggerStatement);
+                createTriggerStatement.executeUpdate();
+                createTriggerStatement.closeOnCompletion();
+            }
+
+            for (String snapshotStatement : ViewRefresher.createStatements()) {
+                PreparedStatement createSnapshotStatement = connection.prepareStatement(snapshotStatement);
+                createSnapshotStatement.executeUpdate();
+                createSnapshotStatement.closeOnCompletion();
+            }
+
         } catch(Exception e) {
             System.out.println("Failed to create tables!"+ e);
         }
+        EntityCache.invalidateAllCaches();
+        CloseEmployeesIndex.invalidate();
+        DBConnector.schemaChanged();
     }
 
     public static void clearTables() {
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             assert connection != null;
 
             PreparedStatement createLabsStatement = connection.prepareStatement(
-                    "TRUNCATE labs, employees, vaccines, employees_labs, vaccines_labs"
+                    "TRUNCATE labs, employees, vaccines, employees_labs, vaccines_labs, " + SummaryTables.TABLES +
+                        (SalesLedger.isEnabled() ? ", " + SalesLedger.TABLES : "")
             );
             createLabsStatement.execute();
             createLabsStatement.closeOnCompletion();
 
-            connection.close();
+            ViewRefresher.refresh();
+
         } catch(Exception e) {
             System.out.println("Failed to clear tables!"+ e);
         }
+        VaccineWriteBehind.discard(null);
+        EntityCache.invalidateAllCaches();
+        CloseEmployeesIndex.invalidate();
     }
 
     public static void dropTables() {
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             assert connection != null;
 
             PreparedStatement dropLabsStatement = connection.prepareStatement(
-                    "DROP TABLE labs, employees, vaccines, employees_labs, vaccines_labs CASCADE"
+                    "DROP TABLE labs, employees, vaccines, employees_labs, vaccines_labs, " + SummaryTables.TABLES +
+                        (SalesLedger.isEnabled() ? ", " + SalesLedger.TABLES : "") + " CASCADE"
             );
             dropLabsStatement.execute();
             dropLabsStatement.closeOnCompletion();
 
-            connection.close();
+            ArrayList<String> dropFunctionStatements = new ArrayList<>(Arrays.asList(SummaryTables.dropStatements()));
+            dropFunctionStatements.addAll(Arrays.asList(VaccineFunctions.dropStatements()));
+            dropFunctionStatements.addAll(Arrays.asList(SalesLedger.dropStatements()));
+            dropFunctionStatements.addAll(Arrays.asList(ChangeListener.dropStatements()));
+            for (String dropStatement : dropFunctionStatements) {
+                PreparedStatement dropFunctionStatement = connection.prepareStatement(dropStatement);
+                dropFunctionStatement.execute();
+                dropFunctionStatement.closeOnCompletion();
+            }
+
         } catch(Exception e) {
             System.out.println("Failed to drop tables!" + e);
         }
+        VaccineWriteBehind.discard(null);
+        EntityCache.invalidateAllCaches();
+        CloseEmployeesIndex.invalidate();
+        DBConnector.schemaChanged();
+    }
+
+    /**
+     * Runs work as one transaction: the Solution calls it makes on this thread share a connection and
+     * are committed together at the end. Every call still returns what it would have on its own, and a
+     * call that fails undoes only itself. Returns OK once committed, and ERROR if the work was rolled
+     * back because it called setRollbackOnly or the commit failed; an exception thrown by the work is
+     * rethrown after the rollback. Calls made on other threads (SolutionAsync) are not part of it, and a
+     * nested inTransaction joins the outer one.
+     */
+    public static ReturnValue inTransaction(Consumer<UnitOfWork> work) {
+        try {
+            return UnitOfWork.run(work) ? OK : ERROR;
+        } catch(SQLException exception) {
+            return ERROR;
+        }
     }
 
     ////////////////////////////////
@@ -178,8 +295,7 @@ public class Solution {
 
     public static ReturnValue addLab(Lab lab) {
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null) return ReturnValue.ERROR;
 
             PreparedStatement createLabStatement = connection.prepareStatement(
@@ -193,8 +309,10 @@ public class Solution {
 
             int affectedRows = createLabStatement.executeUpdate();
 
-            if (affectedRows == 1)
+            if (affectedRows == 1) {
+                CloseEmployeesIndex.labAdded(lab.getId(), lab.getCity());
                 return ReturnValue.OK;
+            }
 
         } catch(SQLException exception) {
             return convertSqlState(exception.getSQLState());
@@ -204,10 +322,15 @@ public class Solution {
     }
 
     public static Lab getLabProfile(Integer labID) {
+        Lab lab = labCache.get(labID, Solution::queryLabProfile);
+        return lab == null ? Lab.badLab() : lab;
+    }
+
+    private static Lab queryLabProfile(Integer labID) {
         Lab lab;
-        try {
-            Connection connection = DBConnector.getConnection();
-            if(connection == null)  return Lab.badLab();
+        // from the primary: a lagging replica would keep a stale row in the cache until it expires
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null)  return null;
 
             PreparedStatement createLabStatement = connection.prepareStatement(
                     "SELECT l.id, l.name, l.city, l.active " +
@@ -222,22 +345,19 @@ public class Solution {
 
             resultSet.close();
             createLabStatement.close();
-            connection.close();
 
 
 
         } catch(SQLException exception) {
-            return Lab.badLab();
+            return null;
         }
 
-        if(lab == null) lab = Lab.badLab();
         return lab;
     }
 
     public static ReturnValue deleteLab(Lab lab) {
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null)  return ReturnValue.ERROR;
 
             PreparedStatement deleteLabStatement = connection.prepareStatement(
@@ -249,12 +369,14 @@ public class Solution {
             int affectedRows = deleteLabStatement.executeUpdate();
 
             deleteLabStatement.close();
-            connection.close();
 
             if(affectedRows != 1) return NOT_EXISTS;
+            CloseEmployeesIndex.labDeleted(lab.getId());
 
         } catch(SQLException exception) {
             return ReturnValue.ERROR;
+        } finally {
+            labCache.invalidate(lab.getId());
         }
 
         return OK;
@@ -262,8 +384,7 @@ public class Solution {
 
     public static ReturnValue addEmployee(Employee employee) {
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null) return ReturnValue.ERROR;
 
             PreparedStatement createEmployeeStatement = connection.prepareStatement(
@@ -287,12 +408,17 @@ public class Solution {
     }
 
     public static Employee getEmployeeProfile(Integer employeeID) {
+        Employee employee = employeeCache.get(employeeID, Solution::queryEmployeeProfile);
+        return employee == null ? Employee.badEmployee() : employee;
+    }
+
+    private static Employee queryEmployeeProfile(Integer employeeID) {
 
         Employee employee;
 
-        try {
-            Connection connection = DBConnector.getConnection();
-            if(connection == null)  return Employee.badEmployee();
+        // from the primary: a lagging replica would keep a stale row in the cache until it expires
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null)  return null;
 
             PreparedStatement queryEmployeeStatement = connection.prepareStatement(
                     "SELECT e.id, e.name, e.city " +
@@ -307,20 +433,17 @@ public class Solution {
 
             resultSet.close();
             queryEmployeeStatement.close();
-            connection.close();
 
         } catch(SQLException exception) {
-            return Employee.badEmployee();
+            return null;
         }
 
-        if(employee == null) return Employee.badEmployee();
         return employee;
     }
 
     public static ReturnValue deleteEmployee(Employee employee) {
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null)  return ReturnValue.ERROR;
 
             PreparedStatement deleteEmployeeStatement = connection.prepareStatement(
@@ -332,12 +455,13 @@ public class Solution {
             int affectedRows = deleteEmployeeStatement.executeUpdate();
 
             deleteEmployeeStatement.close();
-            connection.close();
 
             if(affectedRows != 1) return NOT_EXISTS;
 
         } catch(SQLException exception) {
             return ReturnValue.ERROR;
+        } finally {
+            employeeCache.invalidate(employee.getId());
         }
 
         return OK;
@@ -345,8 +469,7 @@ public class Solution {
 
     public static ReturnValue addVaccine(Vaccine vaccine) {
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null) return ReturnValue.ERROR;
 
             PreparedStatement createEmployeeStatement = connection.prepareStatement(
@@ -372,14 +495,31 @@ public class Solution {
     }
 
     public static Vaccine getVaccineProfile(Integer vaccineID) {
+        Vaccine vaccine = vaccineCache.get(vaccineID, Solution::queryVaccineProfile);
+        if(vaccine == null) return Vaccine.badVaccine();
+
+        // sales still waiting in the write-behind buffer
+        int[] projected = projected(vaccineID);
+        if(projected != null) {
+            vaccine.setCost(projected[0]);
+            vaccine.setUnits(projected[1]);
+            vaccine.setProductivity(projected[2]);
+        }
+        return vaccine;
+    }
+
+    private static Vaccine queryVaccineProfile(Integer vaccineID) {
         Vaccine vaccine;
 
-        try {
-            Connection connection = DBConnector.getConnection();
-            if(connection == null)  return Vaccine.badVaccine();
+        // from the primary: a lagging replica would keep a stale row in the cache until it expires
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null)  return null;
 
-            PreparedStatement queryVaccineStatement = connection.prepareStatement(
-                    "SELECT v.id, v.name, v.cost, v.stock, v.productivity " +
+            PreparedStatement queryVaccineStatement = connection.prepareStatement(SalesLedger.isEnabled()
+                    ? "SELECT v.id, v.name, s.cost, s.stock, s.productivity " +
+                        "FROM vaccines v, vaccine_state(v.id) s " +
+                        "WHERE v.id = ?"
+                    : "SELECT v.id, v.name, v.cost, v.stock, v.productivity " +
                         "FROM vaccines v " +
                         "WHERE v.id = ?"
             );
@@ -391,19 +531,16 @@ public class Solution {
 
             resultSet.close();
             queryVaccineStatement.close();
-            connection.close();
 
         } catch(SQLException exception) {
-            return Vaccine.badVaccine();
+            return null;
         }
 
-        if(vaccine == null) return Vaccine.badVaccine();
         return vaccine;
     }
 
     public static ReturnValue deleteVaccine(Vaccine vaccine) {
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null)  return ReturnValue.ERROR;
 
             PreparedStatement deleteVaccineStatement = connection.prepareStatement(
@@ -415,12 +552,14 @@ public class Solution {
             int affectedRows = deleteVaccineStatement.executeUpdate();
 
             deleteVaccineStatement.close();
-            connection.close();
 
             if(affectedRows != 1) return NOT_EXISTS;
 
         } catch(SQLException exception) {
             return ReturnValue.ERROR;
+        } finally {
+            VaccineWriteBehind.discard(vaccine.getId());
+            vaccineCache.invalidate(vaccine.getId());
         }
 
         return OK;
@@ -433,8 +572,7 @@ public class Solution {
 
     public static ReturnValue employeeJoinLab(Integer employeeID, Integer labID, Integer salary) {
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null) return ReturnValue.ERROR;
 
             PreparedStatement createStatement = connection.prepareStatement(
@@ -453,13 +591,14 @@ public class Solution {
             return convertSqlState(exception.getSQLState());
         }
 
+        CloseEmployeesIndex.membershipChanged(employeeID, labID);
+        ViewRefresher.recordWrites(1);
         return OK;
     }
 
     public static ReturnValue employeeLeftLab(Integer labID, Integer employeeID) {
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null)  return ReturnValue.ERROR;
 
             PreparedStatement deleteStatement = connection.prepareStatement(
@@ -473,7 +612,6 @@ public class Solution {
             int affectedRows = deleteStatement.executeUpdate();
 
             deleteStatement.close();
-            connection.close();
 
             if(affectedRows != 1) return NOT_EXISTS;
 
@@ -481,13 +619,14 @@ public class Solution {
             return ReturnValue.ERROR;
         }
 
+        CloseEmployeesIndex.membershipChanged(employeeID, labID);
+        ViewRefresher.recordWrites(1);
         return OK;
     }
 
     public static ReturnValue labProduceVaccine(Integer vaccineID, Integer labID) {
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null) return ReturnValue.ERROR;
 
             PreparedStatement createStatement = connection.prepareStatement(
@@ -511,8 +650,7 @@ public class Solution {
     public static ReturnValue labStoppedProducingVaccine(Integer labID, Integer vaccineID) {
 
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null)  return ReturnValue.ERROR;
 
             PreparedStatement deleteStatement = connection.prepareStatement(
@@ -525,7 +663,6 @@ public class Solution {
             int affectedRows = deleteStatement.executeUpdate();
 
             deleteStatement.close();
-            connection.close();
 
             if(affectedRows != 1) return NOT_EXISTS;
 
@@ -538,8 +675,14 @@ public class Solution {
 
     public static ReturnValue vaccineSold(Integer vaccineID, Integer amount) {
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        if(SalesLedger.isEnabled()) return ledgerCall(SalesLedger.soldCall(), vaccineID, amount);
+        if(VaccineWriteBehind.isEnabled()) {
+            if(!UnitOfWork.isActive()) return VaccineWriteBehind.sold(vaccineID, amount);
+            // the write below has to land after what other threads still have buffered for the vaccine
+            VaccineWriteBehind.flush(vaccineID);
+        }
+
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null) return ReturnValue.ERROR;
 
 
@@ -561,16 +704,25 @@ public class Solution {
 
         } catch(SQLException exception) {
             return convertSqlState(exception.getSQLState());
+        } finally {
+            vaccineCache.invalidate(vaccineID);
         }
 
-        return OK;    }
+        return OK;
+    }
 
     public static ReturnValue vaccineProduced(Integer vaccineID, Integer amount) {
 
         if(amount < 0) return BAD_PARAMS;
 
-        try {
-            Connection connection = DBConnector.getConnection();
+        if(SalesLedger.isEnabled()) return ledgerCall(SalesLedger.producedCall(), vaccineID, amount);
+        if(VaccineWriteBehind.isEnabled()) {
+            if(!UnitOfWork.isActive()) return VaccineWriteBehind.produced(vaccineID, amount);
+            // the write below has to land after what other threads still have buffered for the vaccine
+            VaccineWriteBehind.flush(vaccineID);
+        }
+
+        try (Connection connection = DBConnector.getConnection()) {
             if(connection == null) return ReturnValue.ERROR;
 
             PreparedStatement createEmployeeStatement = connection.prepareStatement(
@@ -589,22 +741,116 @@ public class Solution {
 
         } catch(SQLException exception) {
             return convertSqlState(exception.getSQLState());
+        } finally {
+            vaccineCache.invalidate(vaccineID);
         }
 
         return OK;
     }
 
+    /**
+     * vaccineSold and vaccineProduced through the sales ledger, see {@link SalesLedger}.
+     */
+    private static ReturnValue ledgerCall(String call, Integer vaccineID, Integer amount) {
+        ReturnValue result;
+
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null) return ReturnValue.ERROR;
+
+            PreparedStatement ledgerStatement = connection.prepareStatement(call);
+            ledgerStatement.setInt(1, vaccineID);
+            ledgerStatement.setInt(2, amount);
+
+            ResultSet resultSet = ledgerStatement.executeQuery();
+            result = resultSet.next() ? ReturnValue.valueOf(resultSet.getString(1)) : ReturnValue.ERROR;
+
+            resultSet.close();
+            ledgerStatement.close();
+
+        } catch(SQLException exception) {
+            return convertSqlState(exception.getSQLState());
+        } finally {
+            vaccineCache.invalidate(vaccineID);
+        }
+
+        return result;
+    }
+
+    /**
+     * vaccineSold, answering with the vaccine's cost, units, productivity and income after the sale,
+     * in one round trip.
+     */
+    public static VaccineState vaccineSoldWithState(Integer vaccineID, Integer amount) {
+        if(VaccineWriteBehind.isEnabled()) {
+            if(!UnitOfWork.isActive())
+                return VaccineWriteBehind.soldWithState(vaccineID, amount);
+            VaccineWriteBehind.flush(vaccineID);
+        }
+        return vaccineStateCall("SELECT * FROM vaccine_sold(?, ?)", vaccineID, amount);
+    }
+
+    /**
+     * vaccineProduced, answering with the vaccine's cost, units, productivity and income after the
+     * production, in one round trip.
+     */
+    public static VaccineState vaccineProducedWithState(Integer vaccineID, Integer amount) {
+        if(amount < 0) return new VaccineState(BAD_PARAMS);
+
+        if(VaccineWriteBehind.isEnabled()) {
+            if(!UnitOfWork.isActive())
+                return VaccineWriteBehind.producedWithState(vaccineID, amount);
+            VaccineWriteBehind.flush(vaccineID);
+        }
+        return vaccineStateCall("SELECT * FROM vaccine_produced(?, ?)", vaccineID, amount);
+    }
+
+    private static VaccineState vaccineStateCall(String call, Integer vaccineID, Integer amount) {
+        SalesLedger.start();
+        VaccineState state;
+
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null) return new VaccineState(ERROR);
+
+            PreparedStatement callStatement = connection.prepareStatement(call);
+            callStatement.setInt(1, vaccineID);
+            callStatement.setInt(2, amount);
+
+            ResultSet resultSet = callStatement.executeQuery();
+            state = resultSet.next() ? readVaccineState(resultSet) : new VaccineState(ERROR);
+
+            resultSet.close();
+            callStatement.close();
+
+        } catch(SQLException exception) {
+            return new VaccineState(convertSqlState(exception.getSQLState()));
+        } finally {
+            vaccineCache.invalidate(vaccineID);
+        }
+
+        return state;
+    }
+
+    /**
+     * What the write-behind buffer projects for the vaccine, except inside a unit of work: that reads
+     * its own transaction, which the buffered events are not part of.
+     */
+    private static int[] projected(Integer vaccineID) {
+        return UnitOfWork.isActive() ? null : VaccineWriteBehind.projected(vaccineID);
+    }
+
+    /**
+     * Reads the trigger-maintained lab_vaccine_stats, which is always current.
+     */
     public static Boolean isLabPopular(Integer labID) {
         boolean isPopular = true;
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
             if(connection == null)  return false;
 
+            // a lab without a row produces no vaccines, and is popular
             PreparedStatement queryVaccineStatement = connection.prepareStatement(
-                    "SELECT COUNT(*) " +
-                        "FROM vaccines_labs_view vl " +
-                        "WHERE vl.lab_id = ? " +
-                        "AND vl.vaccine_productivity < 20"
+                    "SELECT s.unproductive_vaccines " +
+                        "FROM lab_vaccine_stats s " +
+                        "WHERE s.lab_id = ?"
             );
             queryVaccineStatement.setInt(1, labID);
 
@@ -617,7 +863,6 @@ public class Solution {
 
             resultSet.close();
             queryVaccineStatement.close();
-            connection.close();
 
 
         } catch(SQLException exception) {
@@ -627,13 +872,18 @@ public class Solution {
     }
 
     public static Integer getIncomeFromVaccine(Integer vaccineID) {
+        int[] projected = projected(vaccineID);
+        if(projected != null) return projected[3];
+
         int result;
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
             if(connection == null)  return 0;
 
-            PreparedStatement queryStatement = connection.prepareStatement(
-                    "SELECT total_sales " +
+            PreparedStatement queryStatement = connection.prepareStatement(SalesLedger.isEnabled()
+                    ? "SELECT s.total_sales " +
+                        "FROM vaccines v, vaccine_state(v.id) s " +
+                        "WHERE v.id = ? "
+                    : "SELECT total_sales " +
                         "FROM vaccines v " +
                         "WHERE v.id = ? "
             );
@@ -645,7 +895,6 @@ public class Solution {
 
             resultSet.close();
             queryStatement.close();
-            connection.close();
 
 
         } catch(SQLException exception) {
@@ -656,12 +905,14 @@ public class Solution {
 
     public static Integer getTotalNumberOfWorkingVaccines() {
         int result;
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
             if(connection == null)  return 0;
 
-            PreparedStatement queryStatement = connection.prepareStatement(
-                    "SELECT sum(v.stock) " +
+            PreparedStatement queryStatement = connection.prepareStatement(SalesLedger.isEnabled()
+                    ? "SELECT sum(s.stock) " +
+                        "FROM public.vaccines v, vaccine_state(v.id) s " +
+                        "WHERE s.productivity >= 20"
+                    : "SELECT sum(v.stock) " +
                         "FROM public.vaccines v " +
                         "WHERE productivity >= 20"
             );
@@ -672,7 +923,6 @@ public class Solution {
 
             resultSet.close();
             queryStatement.close();
-            connection.close();
 
 
         } catch(SQLException exception) {
@@ -682,28 +932,25 @@ public class Solution {
     }
 
     public static Integer getTotalWages(Integer labID) {
-        int result;
-        try {
-            Connection connection = DBConnector.getConnection();
+        int result = 0;
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
             if(connection == null)  return 0;
 
+            // a missing lab has no row, an inactive one pays no wages
             PreparedStatement queryStatement = connection.prepareStatement(
-                    "SELECT COALESCE(SUM(salary), 0) " +
-                        "FROM employees " +
-                        "JOIN employees_labs el ON employees.id = el.employee_id " +
-                        "JOIN labs l ON el.lab_id = l.id " +
-                        "WHERE l.active = TRUE " +
-                        "AND l.id = ?"
+                    "SELECT CASE WHEN w.active THEN w.total_wages ELSE 0 END " +
+                        "FROM lab_wage_totals w " +
+                        "WHERE w.lab_id = ?"
             );
             queryStatement.setInt(1, labID);
 
             ResultSet resultSet = queryStatement.executeQuery();
 
-            result = readInt(resultSet);
+            if(resultSet.next())
+                result = resultSet.getInt(1);
 
             resultSet.close();
             queryStatement.close();
-            connection.close();
 
 
         } catch(SQLException exception) {
@@ -712,20 +959,55 @@ public class Solution {
         return result;
     }
 
+    /**
+     * getTotalWages for many labs in one round trip; every requested id is in the result.
+     */
+    public static HashMap<Integer, Integer> getTotalWages(Collection<Integer> labIDs) {
+        HashMap<Integer, Integer> result = new HashMap<>();
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (Integer labID : labIDs) {
+            if (labID == null) continue;
+            ids.add(labID);
+            result.put(labID, 0);
+        }
+        if (ids.isEmpty()) return result;
+
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
+            if(connection == null)  return null;
+
+            PreparedStatement queryStatement = connection.prepareStatement(
+                    "SELECT w.lab_id, w.total_wages " +
+                        "FROM lab_wage_totals w " +
+                        "WHERE w.lab_id = ANY(?) " +
+                        "AND w.active"
+            );
+            queryStatement.setArray(1, connection.createArrayOf("integer", ids.toArray()));
+
+            ResultSet resultSet = queryStatement.executeQuery();
+            while(resultSet.next()) {
+                result.put(resultSet.getInt(1), resultSet.getInt(2));
+            }
+
+            resultSet.close();
+            queryStatement.close();
+
+        } catch(SQLException exception) {
+            return null;
+        }
+        return result;
+    }
+
     public static Integer getBestLab() {
         int result;
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
             if(connection == null)  return 0;
 
+            // the first entry of lab_same_city_counts_top_idx
             PreparedStatement queryStatement = connection.prepareStatement(
-                    "SELECT l.id " +
-                        "FROM labs l " +
-                        "JOIN employees_labs el ON l.id = el.lab_id " +
-                        "JOIN employees e ON el.employee_id = e.id " +
-                        "WHERE e.city = l.city " +
-                        "GROUP BY l.id " +
-                        "ORDER BY count(e.id) DESC, l.id ASC"
+                    "SELECT s.lab_id " +
+                        "FROM lab_same_city_counts s " +
+                        "ORDER BY s.employees DESC, s.lab_id ASC " +
+                        "LIMIT 1"
             );
 
             ResultSet resultSet = queryStatement.executeQuery();
@@ -735,7 +1017,6 @@ public class Solution {
 
             resultSet.close();
             queryStatement.close();
-            connection.close();
 
 
         } catch(SQLException exception) {
@@ -744,17 +1025,20 @@ public class Solution {
         return result;
     }
 
+    /**
+     * Reads the trigger-maintained city_employment_counts, which is always current. Ties go to the
+     * lexicographically largest city.
+     */
     public static String getMostPopularCity() {
         String result;
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
             if(connection == null)  return null;
 
+            // the first entry of city_employment_counts_top_idx
             PreparedStatement queryStatement = connection.prepareStatement(
-                    "SELECT elv.employee_city " +
-                        "FROM employees_labs_view elv " +
-                        "GROUP BY elv.employee_city " +
-                        "ORDER BY count(elv.employee_city) DESC " +
+                    "SELECT c.city " +
+                        "FROM city_employment_counts c " +
+                        "ORDER BY c.employments DESC, c.city DESC " +
                         "LIMIT 1"
             );
 
@@ -765,7 +1049,6 @@ public class Solution {
 
             resultSet.close();
             queryStatement.close();
-            connection.close();
 
 
         } catch(SQLException exception) {
@@ -778,22 +1061,20 @@ public class Solution {
     // Advanced API
     ////////////////////////////////////
 
+    /**
+     * Like {@link #isLabPopular(Integer)}, always the live answer.
+     */
     public static ArrayList<Integer> getPopularLabs() {
         ArrayList<Integer> result = new ArrayList<>();
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
             if(connection == null)  return null;
 
             PreparedStatement queryStatement = connection.prepareStatement(
-                    "SELECT l.id " +
-                        "FROM labs l " +
-                        "WHERE l.id NOT IN ( " +
-                        "    SELECT vlv.lab_id " +
-                        "    FROM vaccines_labs_view vlv " +
-                        "    WHERE vlv.vaccine_productivity < 20 " +
-                        ") " +
-                        "AND l.id IN (SELECT vlv2.lab_id FROM vaccines_labs_view vlv2) " +
-                        "ORDER BY l.id " +
+                    "SELECT s.lab_id " +
+                        "FROM lab_vaccine_stats s " +
+                        "WHERE s.vaccines > 0 " +
+                        "AND s.unproductive_vaccines = 0 " +
+                        "ORDER BY s.lab_id " +
                         "LIMIT 3"
             );
 
@@ -804,7 +1085,6 @@ public class Solution {
 
             resultSet.close();
             queryStatement.close();
-            connection.close();
 
 
         } catch(SQLException exception) {
@@ -814,17 +1094,28 @@ public class Solution {
     }
 
     public static ArrayList<Integer> getMostRatedVaccines() {
+        return getMostRatedVaccines(10);
+    }
+
+    /**
+     * The ids of the k vaccines with the highest (stock + productivity - cost), ties broken by id.
+     * With the sales ledger on, the rating is as of the last compaction, see {@link SalesLedger}.
+     */
+    public static ArrayList<Integer> getMostRatedVaccines(int k) {
         ArrayList<Integer> result = new ArrayList<>();
-        try {
-            Connection connection = DBConnector.getConnection();
+        if(k <= 0) return result;
+
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
             if(connection == null)  return null;
 
+            // the ORDER BY must stay identical to vaccines_rating_idx for the index to be used
             PreparedStatement queryStatement = connection.prepareStatement(
                     "SELECT v.id " +
                         "FROM vaccines v " +
-                        "ORDER BY (v.stock + v.productivity - v.cost) DESC, id " +
-                        "LIMIT 10"
+                        "ORDER BY (v.stock::bigint + v.productivity - v.cost) DESC, v.id " +
+                        "LIMIT ?"
             );
+            queryStatement.setInt(1, k);
 
             ResultSet resultSet = queryStatement.executeQuery();
             while(resultSet.next()) {
@@ -833,7 +1124,6 @@ public class Solution {
 
             resultSet.close();
             queryStatement.close();
-            connection.close();
 
 
         } catch(SQLException exception) {
@@ -843,21 +1133,34 @@ public class Solution {
     }
 
     public static ArrayList<Integer> getCloseEmployees(Integer employeeID) {
+        return getCloseEmployees(employeeID, Freshness.LIVE);
+    }
+
+    /**
+     * LIVE answers from the in-memory {@link CloseEmployeesIndex} while it is enabled, and from
+     * employees_labs_view otherwise; SNAPSHOT reads the materialized view.
+     */
+    public static ArrayList<Integer> getCloseEmployees(Integer employeeID, Freshness freshness) {
+        if(freshness == Freshness.LIVE) {
+            ArrayList<Integer> indexed = CloseEmployeesIndex.closeEmployees(employeeID, 10);
+            if(indexed != null) return indexed;
+        }
+
+        String employeesLabs = ViewRefresher.relation("employees_labs_view", freshness);
         ArrayList<Integer> result = new ArrayList<>();
-        try {
-            Connection connection = DBConnector.getConnection();
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
             if(connection == null)  return null;
 
             PreparedStatement queryStatement = connection.prepareStatement(
                     "SELECT elv1.employee_id " +
-                        "FROM employees_labs_view elv1 " +
+                        "FROM " + employeesLabs + " elv1 " +
                         "WHERE elv1.lab_city IN (SELECT elv2.lab_city " +
-                        "                          FROM employees_labs_view elv2 " +
+                        "                          FROM " + employeesLabs + " elv2 " +
                         "                         WHERE elv2.employee_id = ?) " +
                         "AND elv1.employee_id != ? " +
                         "GROUP BY elv1.employee_id " +
                         "HAVING 100 * count(elv1.employee_id) / (SELECT count(*) FROM (SELECT distinct elv3.lab_city " +
-                        "                                    FROM employees_labs_view elv3 " +
+                        "                                    FROM " + employeesLabs + " elv3 " +
                         "                                   WHERE elv3.employee_id = ?) as distinct_cities) >= 50 " +
                         "ORDER BY elv1.employee_id " +
                         "LIMIT 10"
@@ -873,7 +1176,6 @@ public class Solution {
 
             resultSet.close();
             queryStatement.close();
-            connection.close();
 
 
         } catch(SQLException exception) {
@@ -882,14 +1184,634 @@ public class Solution {
         return result;
     }
 
+    /**
+     * getCloseEmployees for every employee at once. Employees missing from the result work in no
+     * lab and have no close employees.
+     */
+    public static HashMap<Integer, ArrayList<Integer>> getCloseEmployeesForAll() {
+        try {
+            return CloseEmployeesIndex.closeEmployeesForAll(10);
+        } catch(SQLException exception) {
+            return null;
+        }
+    }
+
+    ////////////////////////////////////
+    // Batch API
+    ////////////////////////////////////
+
+    public static ReturnValue[] addLabs(List<Lab> labs) {
+        ReturnValue[] results = insertAll(labs, "labs",
+                "INSERT INTO labs(id, name, city, active) " +
+                    "VALUES (?, ?, ?, ?)",
+                lab -> lab.getId() > 0 && lab.getName() != null && lab.getCity() != null,
+                Lab::getId,
+                (statement, lab) -> {
+                    statement.setInt(1, lab.getId());
+                    statement.setString(2, lab.getName());
+                    statement.setString(3, lab.getCity());
+                    statement.setBoolean(4, lab.getIsActive());
+                });
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == OK) CloseEmployeesIndex.labAdded(labs.get(i).getId(), labs.get(i).getCity());
+        }
+        return results;
+    }
+
+    public static ReturnValue[] addEmployees(List<Employee> employees) {
+        return insertAll(employees, "employees",
+                "INSERT INTO public.employees(" +
+                    "id, name, city)" +
+                    "VALUES (?, ?, ?)",
+                employee -> employee.getId() > 0 && employee.getName() != null && employee.getCity() != null,
+                Employee::getId,
+                (statement, employee) -> {
+                    statement.setInt(1, employee.getId());
+                    statement.setString(2, employee.getName());
+                    statement.setString(3, employee.getCity());
+                });
+    }
+
+    public static ReturnValue[] addVaccines(List<Vaccine> vaccines) {
+        return insertAll(vaccines, "vaccines",
+                "INSERT INTO public.vaccines(" +
+                    "id, name, cost, stock, productivity)" +
+                    "VALUES (?, ?, ?, ?, ?)",
+                vaccine -> vaccine.getId() > 0 && vaccine.getName() != null && vaccine.getCost() >= 0
+                        && vaccine.getUnits() >= 0 && vaccine.getProductivity() >= 0,
+                Vaccine::getId,
+                (statement, vaccine) -> {
+                    statement.setInt(1, vaccine.getId());
+                    statement.setString(2, vaccine.getName());
+                    statement.setInt(3, vaccine.getCost());
+                    statement.setInt(4, vaccine.getUnits());
+                    statement.setInt(5, vaccine.getProductivity());
+                });
+    }
+
+    /**
+     * Set-based employeeJoinLab: all pairs are sent as arrays and applied by a single statement.
+     * Each pair gets the ReturnValue employeeJoinLab would have returned for it, in list order.
+     */
+    public static ReturnValue[] employeesJoinLabs(List<EmployeeLab> assignments) {
+        ReturnValue[] results = new ReturnValue[assignments.size()];
+        Arrays.fill(results, ERROR);
+        if (assignments.isEmpty()) return results;
+
+        Integer[] employeeIds = new Integer[assignments.size()];
+        Integer[] labIds = new Integer[assignments.size()];
+        Integer[] salaries = new Integer[assignments.size()];
+        for (int i = 0; i < assignments.size(); i++) {
+            EmployeeLab assignment = assignments.get(i);
+            if (assignment == null) continue;
+            employeeIds[i] = assignment.getEmployeeId();
+            labIds[i] = assignment.getLabId();
+            salaries[i] = assignment.getSalary();
+        }
+
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null) return results;
+
+            PreparedStatement joinStatement = connection.prepareStatement(
+                    "WITH input AS ( " +
+                        "   SELECT * FROM unnest(?::integer[], ?::integer[], ?::integer[]) " +
+                        "   WITH ORDINALITY AS i(employee_id, lab_id, salary, position) " +
+                        "), checked AS ( " +
+                        "   SELECT i.*, CASE " +
+                        "       WHEN i.employee_id IS NULL OR i.lab_id IS NULL OR i.salary IS NULL OR i.salary < 0 " +
+                        "           THEN 'BAD_PARAMS' " +
+                        "       WHEN EXISTS (SELECT 1 FROM employees_labs el " +
+                        "                    WHERE el.employee_id = i.employee_id AND el.lab_id = i.lab_id) " +
+                        "           THEN 'ALREADY_EXISTS' " +
+                        "       WHEN NOT EXISTS (SELECT 1 FROM employees e WHERE e.id = i.employee_id) " +
+                        "         OR NOT EXISTS (SELECT 1 FROM labs l WHERE l.id = i.lab_id) " +
+                        "           THEN 'NOT_EXISTS' " +
+                        "       ELSE 'OK' END AS status " +
+                        "   FROM input i " +
+                        "), firsts AS ( " +
+                        "   SELECT min(position) AS position FROM checked " +
+                        "   WHERE status = 'OK' GROUP BY employee_id, lab_id " +
+                        "), inserted AS ( " +
+                        "   INSERT INTO employees_labs(employee_id, lab_id, salary) " +
+                        "   SELECT c.employee_id, c.lab_id, c.salary " +
+                        "   FROM checked c JOIN firsts f ON f.position = c.position " +
+                        "   ON CONFLICT DO NOTHING " +
+                        "   RETURNING employee_id, lab_id " +
+                        ") " +
+                        "SELECT c.position, CASE " +
+                        "   WHEN c.status <> 'OK' THEN c.status " +
+                        "   WHEN f.position IS NULL OR ins.employee_id IS NULL THEN 'ALREADY_EXISTS' " +
+                        "   ELSE 'OK' END " +
+                        "FROM checked c " +
+                        "LEFT JOIN firsts f ON f.position = c.position " +
+                        "LEFT JOIN inserted ins ON f.position IS NOT NULL " +
+                        "   AND ins.employee_id = c.employee_id AND ins.lab_id = c.lab_id"
+            );
+            joinStatement.setArray(1, connection.createArrayOf("integer", employeeIds));
+            joinStatement.setArray(2, connection.createArrayOf("integer", labIds));
+            joinStatement.setArray(3, connection.createArrayOf("integer", salaries));
+
+            ViewRefresher.recordWrites(readStatuses(joinStatement.executeQuery(), results));
+
+        } catch(SQLException exception) {
+            Arrays.fill(results, ERROR);
+        }
+
+        changedMemberships(employeeIds, labIds, results);
+        return results;
+    }
+
+    /**
+     * Set-based employeeLeftLab; the salary of each assignment is ignored.
+     */
+    public static ReturnValue[] employeesLeftLabs(List<EmployeeLab> assignments) {
+        ReturnValue[] results = new ReturnValue[assignments.size()];
+        Arrays.fill(results, ERROR);
+        if (assignments.isEmpty()) return results;
+
+        Integer[] employeeIds = new Integer[assignments.size()];
+        Integer[] labIds = new Integer[assignments.size()];
+        for (int i = 0; i < assignments.size(); i++) {
+            EmployeeLab assignment = assignments.get(i);
+            if (assignment == null) continue;
+            employeeIds[i] = assignment.getEmployeeId();
+            labIds[i] = assignment.getLabId();
+        }
+
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null) return results;
+
+            PreparedStatement leaveStatement = connection.prepareStatement(
+                    "WITH input AS ( " +
+                        "   SELECT * FROM unnest(?::integer[], ?::integer[]) " +
+                        "   WITH ORDINALITY AS i(employee_id, lab_id, position) " +
+                        "), deleted AS ( " +
+                        "   DELETE FROM employees_labs el " +
+                        "   USING input i " +
+                        "   WHERE el.employee_id = i.employee_id AND el.lab_id = i.lab_id " +
+                        "   RETURNING el.employee_id, el.lab_id " +
+                        ") " +
+                        "SELECT i.position, CASE " +
+                        "   WHEN d.employee_id IS NOT NULL AND row_number() OVER ( " +
+                        "       PARTITION BY i.employee_id, i.lab_id ORDER BY i.position) = 1 THEN 'OK' " +
+                        "   ELSE 'NOT_EXISTS' END " +
+                        "FROM input i " +
+                        "LEFT JOIN deleted d ON d.employee_id = i.employee_id AND d.lab_id = i.lab_id"
+            );
+            leaveStatement.setArray(1, connection.createArrayOf("integer", employeeIds));
+            leaveStatement.setArray(2, connection.createArrayOf("integer", labIds));
+
+            ViewRefresher.recordWrites(readStatuses(leaveStatement.executeQuery(), results));
+
+        } catch(SQLException exception) {
+            Arrays.fill(results, ERROR);
+        }
+
+        changedMemberships(employeeIds, labIds, results);
+        return results;
+    }
+
+    /**
+     * Set-based labProduceVaccine, see {@link #employeesJoinLabs(List)}.
+     */
+    public static ReturnValue[] labsProduceVaccines(List<VaccineLab> productions) {
+        ReturnValue[] results = new ReturnValue[productions.size()];
+        Arrays.fill(results, ERROR);
+        if (productions.isEmpty()) return results;
+
+        Integer[] vaccineIds = new Integer[productions.size()];
+        Integer[] labIds = new Integer[productions.size()];
+        for (int i = 0; i < productions.size(); i++) {
+            VaccineLab production = productions.get(i);
+            if (production == null) continue;
+            vaccineIds[i] = production.getVaccineId();
+            labIds[i] = production.getLabId();
+        }
+
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null) return results;
+
+            PreparedStatement produceStatement = connection.prepareStatement(
+                    "WITH input AS ( " +
+                        "   SELECT * FROM unnest(?::integer[], ?::integer[]) " +
+                        "   WITH ORDINALITY AS i(vaccine_id, lab_id, position) " +
+                        "), checked AS ( " +
+                        "   SELECT i.*, CASE " +
+                        "       WHEN i.vaccine_id IS NULL OR i.lab_id IS NULL " +
+                        "           THEN 'BAD_PARAMS' " +
+                        "       WHEN EXISTS (SELECT 1 FROM vaccines_labs vl " +
+                        "                    WHERE vl.vaccine_id = i.vaccine_id AND vl.lab_id = i.lab_id) " +
+                        "           THEN 'ALREADY_EXISTS' " +
+                        "       WHEN NOT EXISTS (SELECT 1 FROM vaccines v WHERE v.id = i.vaccine_id) " +
+                        "         OR NOT EXISTS (SELECT 1 FROM labs l WHERE l.id = i.lab_id) " +
+                        "           THEN 'NOT_EXISTS' " +
+                        "       ELSE 'OK' END AS status " +
+                        "   FROM input i " +
+                        "), firsts AS ( " +
+                        "   SELECT min(position) AS position FROM checked " +
+                        "   WHERE status = 'OK' GROUP BY vaccine_id, lab_id " +
+                        "), inserted AS ( " +
+                        "   INSERT INTO vaccines_labs(vaccine_id, lab_id) " +
+                        "   SELECT c.vaccine_id, c.lab_id " +
+                        "   FROM checked c JOIN firsts f ON f.position = c.position " +
+                        "   ON CONFLICT DO NOTHING " +
+                        "   RETURNING vaccine_id, lab_id " +
+                        ") " +
+                        "SELECT c.position, CASE " +
+                        "   WHEN c.status <> 'OK' THEN c.status " +
+                        "   WHEN f.position IS NULL OR ins.vaccine_id IS NULL THEN 'ALREADY_EXISTS' " +
+                        "   ELSE 'OK' END " +
+                        "FROM checked c " +
+                        "LEFT JOIN firsts f ON f.position = c.position " +
+                        "LEFT JOIN inserted ins ON f.position IS NOT NULL " +
+                        "   AND ins.vaccine_id = c.vaccine_id AND ins.lab_id = c.lab_id"
+            );
+            produceStatement.setArray(1, connection.createArrayOf("integer", vaccineIds));
+            produceStatement.setArray(2, connection.createArrayOf("integer", labIds));
+
+            readStatuses(produceStatement.executeQuery(), results);
+
+        } catch(SQLException exception) {
+            Arrays.fill(results, ERROR);
+        }
+        return results;
+    }
+
+    /**
+     * Set-based labStoppedProducingVaccine.
+     */
+    public static ReturnValue[] labsStoppedProducingVaccines(List<VaccineLab> productions) {
+        ReturnValue[] results = new ReturnValue[productions.size()];
+        Arrays.fill(results, ERROR);
+        if (productions.isEmpty()) return results;
+
+        Integer[] vaccineIds = new Integer[productions.size()];
+        Integer[] labIds = new Integer[productions.size()];
+        for (int i = 0; i < productions.size(); i++) {
+            VaccineLab production = productions.get(i);
+            if (production == null) continue;
+            vaccineIds[i] = production.getVaccineId();
+            labIds[i] = production.getLabId();
+        }
+
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null) return results;
+
+            PreparedStatement stopStatement = connection.prepareStatement(
+                    "WITH input AS ( " +
+                        "   SELECT * FROM unnest(?::integer[], ?::integer[]) " +
+                        "   WITH ORDINALITY AS i(vaccine_id, lab_id, position) " +
+                        "), deleted AS ( " +
+                        "   DELETE FROM vaccines_labs vl " +
+                        "   USING input i " +
+                        "   WHERE vl.vaccine_id = i.vaccine_id AND vl.lab_id = i.lab_id " +
+                        "   RETURNING vl.vaccine_id, vl.lab_id " +
+                        ") " +
+                        "SELECT i.position, CASE " +
+                        "   WHEN d.vaccine_id IS NOT NULL AND row_number() OVER ( " +
+                        "       PARTITION BY i.vaccine_id, i.lab_id ORDER BY i.position) = 1 THEN 'OK' " +
+                        "   ELSE 'NOT_EXISTS' END " +
+                        "FROM input i " +
+                        "LEFT JOIN deleted d ON d.vaccine_id = i.vaccine_id AND d.lab_id = i.lab_id"
+            );
+            stopStatement.setArray(1, connection.createArrayOf("integer", vaccineIds));
+            stopStatement.setArray(2, connection.createArrayOf("integer", labIds));
+
+            readStatuses(stopStatement.executeQuery(), results);
+
+        } catch(SQLException exception) {
+            Arrays.fill(results, ERROR);
+        }
+        return results;
+    }
+
+    ////////////////////////////////////
+    // Insert-if-absent API
+    ////////////////////////////////////
+
+    // Same results as the add* / join / produce calls, but a duplicate is answered from the row count
+    // of an INSERT ... ON CONFLICT DO NOTHING instead of a unique violation the server has to raise and
+    // roll back and the driver has to turn into an exception. Made for retried, mostly duplicate writes.
+
+    public static ReturnValue addLabIfAbsent(Lab lab) {
+        ReturnValue result = insertIfAbsent(
+                "INSERT INTO labs(id, name, city, active) " +
+                    "VALUES (?, ?, ?, ?) " +
+                    "ON CONFLICT DO NOTHING",
+                lab,
+                (statement, row) -> {
+                    statement.setInt(1, row.getId());
+                    statement.setString(2, row.getName());
+                    statement.setString(3, row.getCity());
+                    statement.setBoolean(4, row.getIsActive());
+                });
+        if (result == OK) CloseEmployeesIndex.labAdded(lab.getId(), lab.getCity());
+        return result;
+    }
+
+    public static ReturnValue addEmployeeIfAbsent(Employee employee) {
+        return insertIfAbsent(
+                "INSERT INTO public.employees(id, name, city) " +
+                    "VALUES (?, ?, ?) " +
+                    "ON CONFLICT DO NOTHING",
+                employee,
+                (statement, row) -> {
+                    statement.setInt(1, row.getId());
+                    statement.setString(2, row.getName());
+                    statement.setString(3, row.getCity());
+                });
+    }
+
+    public static ReturnValue addVaccineIfAbsent(Vaccine vaccine) {
+        return insertIfAbsent(
+                "INSERT INTO public.vaccines(id, name, cost, stock, productivity) " +
+                    "VALUES (?, ?, ?, ?, ?) " +
+                    "ON CONFLICT DO NOTHING",
+                vaccine,
+                (statement, row) -> {
+                    statement.setInt(1, row.getId());
+                    statement.setString(2, row.getName());
+                    statement.setInt(3, row.getCost());
+                    statement.setInt(4, row.getUnits());
+                    statement.setInt(5, row.getProductivity());
+                });
+    }
+
+    public static ReturnValue employeeJoinLabIfAbsent(Integer employeeID, Integer labID, Integer salary) {
+        ReturnValue result = insertIfAbsent(
+                "INSERT INTO public.employees_labs(employee_id, lab_id, salary) " +
+                    "VALUES (?, ?, ?) " +
+                    "ON CONFLICT DO NOTHING",
+                new EmployeeLab(employeeID, labID, salary),
+                (statement, row) -> {
+                    statement.setInt(1, row.getEmployeeId());
+                    statement.setInt(2, row.getLabId());
+                    statement.setInt(3, row.getSalary());
+                });
+        if (result == OK) {
+            CloseEmployeesIndex.membershipChanged(employeeID, labID);
+            ViewRefresher.recordWrites(1);
+        }
+        return result;
+    }
+
+    public static ReturnValue labProduceVaccineIfAbsent(Integer vaccineID, Integer labID) {
+        ReturnValue result = insertIfAbsent(
+                "INSERT INTO public.vaccines_labs(vaccine_id, lab_id) " +
+                    "VALUES (?, ?) " +
+                    "ON CONFLICT DO NOTHING",
+                new VaccineLab(vaccineID, labID),
+                (statement, row) -> {
+                    statement.setInt(1, row.getVaccineId());
+                    statement.setInt(2, row.getLabId());
+                });
+        return result;
+    }
+
+    ////////////////////////////////////
+    // Streaming API
+    ////////////////////////////////////
+
+    public static ReturnValue forEachLab(Consumer<Lab> consumer) {
+        return scan(new KeysetScanner(
+                "SELECT l.id, l.name, l.city, l.active " +
+                    "FROM labs l", "id"),
+                row -> consumer.accept(labFromRow(row)));
+    }
+
+    public static ReturnValue forEachEmployee(Consumer<Employee> consumer) {
+        return scan(new KeysetScanner(
+                "SELECT e.id, e.name, e.city " +
+                    "FROM employees e", "id"),
+                row -> consumer.accept(employeeFromRow(row)));
+    }
+
+    public static ReturnValue forEachVaccine(Consumer<Vaccine> consumer) {
+        return scan(new KeysetScanner(SalesLedger.isEnabled()
+                ? "SELECT v.id, v.name, s.cost, s.stock, s.productivity " +
+                    "FROM vaccines v, LATERAL vaccine_state(v.id) s"
+                : "SELECT v.id, v.name, v.cost, v.stock, v.productivity " +
+                    "FROM vaccines v", "id"),
+                row -> consumer.accept(vaccineFromRow(row)));
+    }
+
+    /**
+     * Streams vaccines_labs_view. The view carries no stock, so the vaccines keep the default units.
+     */
+    public static ReturnValue forEachVaccineLab(BiConsumer<Vaccine, Lab> consumer) {
+        return scan(new KeysetScanner(
+                "SELECT vlv.vaccine_id, vlv.lab_id, vlv.vaccine_name, vlv.vaccine_cost, vlv.vaccine_productivity, " +
+                    "vlv.lab_name, vlv.lab_city, vlv.is_lab_active " +
+                    "FROM vaccines_labs_view vlv", "vaccine_id", "lab_id"),
+                row -> {
+                    Vaccine vaccine = new Vaccine();
+                    vaccine.setId(row.getInt("vaccine_id"));
+                    vaccine.setName(row.getString("vaccine_name"));
+                    vaccine.setCost(row.getInt("vaccine_cost"));
+                    vaccine.setProductivity(row.getInt("vaccine_productivity"));
+                    consumer.accept(vaccine, labFromViewRow(row));
+                });
+    }
+
+    public static ReturnValue forEachEmployeeLab(BiConsumer<Employee, Lab> consumer) {
+        return scan(new KeysetScanner(
+                "SELECT elv.employee_id, elv.lab_id, elv.employee_name, elv.employee_city, " +
+                    "elv.lab_name, elv.lab_city, elv.is_lab_active " +
+                    "FROM employees_labs_view elv", "employee_id", "lab_id"),
+                row -> {
+                    Employee employee = new Employee();
+                    employee.setId(row.getInt("employee_id"));
+                    employee.setName(row.getString("employee_name"));
+                    employee.setCity(row.getString("employee_city"));
+                    consumer.accept(employee, labFromViewRow(row));
+                });
+    }
+
     ////////////////////////////////////
     // Utility Methods
     ////////////////////////////////////
+
+    private static ReturnValue scan(KeysetScanner scanner, KeysetScanner.RowHandler handler) {
+        try {
+            scanner.scan(handler);
+        } catch(SQLException exception) {
+            return ERROR;
+        }
+        return OK;
+    }
+
+    private interface RowBinder<T> {
+        void bind(PreparedStatement statement, T row) throws SQLException;
+    }
+
+    /**
+     * Runs an INSERT ... ON CONFLICT DO NOTHING for one row: no row inserted means the key was taken.
+     * Anything else the database rejects still raises and is mapped as usual.
+     */
+    private static <T> ReturnValue insertIfAbsent(String insertSql, T row, RowBinder<T> binder) {
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null) return ReturnValue.ERROR;
+
+            PreparedStatement insertStatement = connection.prepareStatement(insertSql);
+            binder.bind(insertStatement, row);
+
+            int affectedRows = insertStatement.executeUpdate();
+            insertStatement.close();
+
+            return affectedRows == 1 ? OK : ALREADY_EXISTS;
+
+        } catch(SQLException exception) {
+            return convertSqlState(exception.getSQLState());
+        }
+    }
+
+    /**
+     * Inserts all rows in one transaction and reports a ReturnValue per row, the same one a single
+     * add* call would have returned had the rows been added one after the other.
+     * Rows that break a constraint or collide with an existing id are weeded out up front so the
+     * rest can go to the database as a single JDBC batch; only if the batch still fails (e.g. a
+     * concurrent insert of the same id) we fall back to row-by-row inserts behind savepoints.
+     */
+    private static <T> ReturnValue[] insertAll(List<T> rows, String table, String insertSql,
+                                               Predicate<T> isValid, ToIntFunction<T> idOf, RowBinder<T> binder) {
+        ReturnValue[] results = new ReturnValue[rows.size()];
+        Arrays.fill(results, ERROR);
+        if (rows.isEmpty()) return results;
+
+        Map<Integer, Integer> firstIndexOfId = new HashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            T row = rows.get(i);
+            if (row == null || !isValid.test(row)) {
+                results[i] = BAD_PARAMS;
+            } else if (firstIndexOfId.putIfAbsent(idOf.applyAsInt(row), i) != null) {
+                results[i] = ALREADY_EXISTS;
+            } else {
+                results[i] = OK;
+            }
+        }
+        if (firstIndexOfId.isEmpty()) return results;
+
+        try (Connection connection = DBConnector.getConnection()) {
+            if(connection == null) {
+                Arrays.fill(results, ERROR);
+                return results;
+            }
+            connection.setAutoCommit(false);
+
+            PreparedStatement existingStatement = connection.prepareStatement(
+                    "SELECT id FROM " + table + " WHERE id = ANY(?)"
+            );
+            existingStatement.setArray(1, connection.createArrayOf("integer", firstIndexOfId.keySet().toArray()));
+            ResultSet resultSet = existingStatement.executeQuery();
+            while(resultSet.next()) {
+                results[firstIndexOfId.get(resultSet.getInt(1))] = ALREADY_EXISTS;
+            }
+            resultSet.close();
+
+            PreparedStatement insertStatement = connection.prepareStatement(insertSql);
+            List<Integer> pending = new ArrayList<>();
+            for (int i = 0; i < rows.size(); i++) {
+                if (results[i] != OK) continue;
+                binder.bind(insertStatement, rows.get(i));
+                insertStatement.addBatch();
+                pending.add(i);
+            }
+
+            try {
+                insertStatement.executeBatch();
+                connection.commit();
+                return results;
+            } catch (SQLException batchException) {
+                connection.rollback();
+                insertStatement.clearBatch();
+            }
+
+            for (int i : pending) {
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    binder.bind(insertStatement, rows.get(i));
+                    insertStatement.executeUpdate();
+                    connection.releaseSavepoint(savepoint);
+                } catch (SQLException exception) {
+                    connection.rollback(savepoint);
+                    results[i] = convertSqlState(exception.getSQLState());
+                }
+            }
+            connection.commit();
+
+        } catch(SQLException exception) {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == OK) results[i] = ERROR;
+            }
+        }
+        return results;
+    }
+
     private static Lab readLab(ResultSet resultSet) throws SQLException {
-        Lab lab;
         if(!resultSet.next()) return null;
+        return labFromRow(resultSet);
+    }
+
+    private static Employee readEmployee(ResultSet resultSet) throws SQLException {
+        if(!resultSet.next()) return null;
+        return employeeFromRow(resultSet);
+    }
+
+    private static Vaccine readVaccine(ResultSet resultSet) throws SQLException {
+        if(!resultSet.next()) return null;
+        return vaccineFromRow(resultSet);
+    }
+
+    /**
+     * With schema.partitions set, the two junction tables are hash partitioned by lab_id into that
+     * many partitions, so lookups by lab only touch one of them (PostgreSQL 11 or later).
+     */
+    private static String partitionByLab() {
+        return DBConnector.getIntProperty("schema.partitions", 0) > 0 ? " PARTITION BY HASH (lab_id)" : "";
+    }
+
+    private static void createLabPartitions(Connection connection, String table) throws SQLException {
+        int partitions = DBConnector.getIntProperty("schema.partitions", 0);
+        for (int remainder = 0; remainder < partitions; remainder++) {
+            PreparedStatement createPartitionStatement = connection.prepareStatement(
+                    "CREATE TABLE " + table + "_p" + remainder + " " +
+                        "PARTITION OF " + table + " " +
+                        "FOR VALUES WITH (MODULUS " + partitions + ", REMAINDER " + remainder + ")"
+            );
+            createPartitionStatement.executeUpdate();
+            createPartitionStatement.closeOnCompletion();
+        }
+    }
+
+    private static Lab copyLab(Lab lab) {
+        Lab copy = new Lab();
+        copy.setId(lab.getId());
+        copy.setName(lab.getName());
+        copy.setCity(lab.getCity());
+        copy.setIsActive(lab.getIsActive());
+        return copy;
+    }
+
+    private static Employee copyEmployee(Employee employee) {
+        Employee copy = new Employee();
+        copy.setId(employee.getId());
+        copy.setName(employee.getName());
+        copy.setCity(employee.getCity());
+        return copy;
+    }
 
-        lab = new Lab();
+    private static Vaccine copyVaccine(Vaccine vaccine) {
+        Vaccine copy = new Vaccine();
+        copy.setId(vaccine.getId());
+        copy.setName(vaccine.getName());
+        copy.setCost(vaccine.getCost());
+        copy.setUnits(vaccine.getUnits());
+        copy.setProductivity(vaccine.getProductivity());
+        return copy;
+    }
+
+    private static Lab labFromRow(ResultSet resultSet) throws SQLException {
+        Lab lab = new Lab();
         lab.setId(resultSet.getInt("id"));
         lab.setName(resultSet.getString("name"));
         lab.setCity(resultSet.getString("city"));
@@ -898,11 +1820,18 @@ public class Solution {
         return lab;
     }
 
-    private static Employee readEmployee(ResultSet resultSet) throws SQLException {
-        Employee employee;
-        if(!resultSet.next()) return null;
+    private static Lab labFromViewRow(ResultSet resultSet) throws SQLException {
+        Lab lab = new Lab();
+        lab.setId(resultSet.getInt("lab_id"));
+        lab.setName(resultSet.getString("lab_name"));
+        lab.setCity(resultSet.getString("lab_city"));
+        lab.setIsActive(resultSet.getBoolean("is_lab_active"));
 
-        employee = new Employee();
+        return lab;
+    }
+
+    private static Employee employeeFromRow(ResultSet resultSet) throws SQLException {
+        Employee employee = new Employee();
         employee.setId(resultSet.getInt("id"));
         employee.setName(resultSet.getString("name"));
         employee.setCity(resultSet.getString("city"));
@@ -910,11 +1839,19 @@ public class Solution {
         return employee;
     }
 
-    private static Vaccine readVaccine(ResultSet resultSet) throws SQLException {
-        Vaccine vaccine;
+    private static VaccineState readVaccineState(ResultSet resultSet) throws SQLException {
+        VaccineState state = new VaccineState(ReturnValue.valueOf(resultSet.getString("status")));
+        if(state.getReturnValue() != OK) return state;
 
-        if(!resultSet.next()) return null;
-        vaccine = new Vaccine();
+        state.setCost(resultSet.getInt("new_cost"));
+        state.setUnits(resultSet.getInt("new_stock"));
+        state.setProductivity(resultSet.getInt("new_productivity"));
+        state.setIncome(resultSet.getInt("new_total_sales"));
+        return state;
+    }
+
+    private static Vaccine vaccineFromRow(ResultSet resultSet) throws SQLException {
+        Vaccine vaccine = new Vaccine();
         vaccine.setId(resultSet.getInt("id"));
         vaccine.setName(resultSet.getString("name"));
         vaccine.setCost(resultSet.getInt("cost"));
@@ -924,6 +1861,38 @@ public class Solution {
         return vaccine;
     }
 
+    /**
+     * Reads the (1-based position, ReturnValue name) rows of a set-based call into the matching slots
+     * of results; returns how many were OK.
+     */
+    private static int readStatuses(ResultSet resultSet, ReturnValue[] results) throws SQLException {
+        int ok = 0;
+        while(resultSet.next()) {
+            ReturnValue status = ReturnValue.valueOf(resultSet.getString(2));
+            results[resultSet.getInt(1) - 1] = status;
+            if(status == OK) ok++;
+        }
+        resultSet.close();
+        return ok;
+    }
+
+    /**
+     * Tells the close employees index about the memberships a set-based call changed.
+     */
+    private static void changedMemberships(Integer[] employeeIds, Integer[] labIds, ReturnValue[] results) {
+        int changed = 0;
+        for (ReturnValue result : results) if (result == OK) changed++;
+
+        int[] changedEmployees = new int[changed];
+        int[] changedLabs = new int[changed];
+        for (int i = 0, j = 0; i < results.length; i++) {
+            if (results[i] != OK) continue;
+            changedEmployees[j] = employeeIds[i];
+            changedLabs[j++] = labIds[i];
+        }
+        CloseEmployeesIndex.membershipsChanged(changedEmployees, changedLabs);
+    }
+
     private static int readInt(ResultSet resultSet) throws SQLException {
         if(resultSet.next())
             return resultSet.getInt(1);
@@ -0,0 +1,371 @@
+package corona;
+
+import corona.business.Employee;
+import corona.business.EmployeeLab;
+import corona.business.Freshness;
+import corona.business.Lab;
+import corona.business.ReturnValue;
+import corona.business.Vaccine;
+import corona.business.VaccineLab;
+import corona.business.VaccineState;
+import corona.data.DBConnector;
+import corona.data.UnitOfWork;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking facade over {@link Solution}.
+ *
+ * Calls run on a dedicated executor with as many threads as the connection pool has connections,
+ * behind a bounded queue (async.queueCapacity). Cancelling a returned future, or letting it time out,
+ * interrupts the call if it is still running and cancels the statement it is waiting on in the
+ * database, since JDBC calls do not notice interrupts. async.timeoutMillis sets a default timeout for every
+ * call, {@link #withTimeout} sets one for a single call.
+ */
+public class SolutionAsync {
+
+    private static final ThreadPoolExecutor executor;
+    private static final ScheduledExecutorService timer;
+    private static final long defaultTimeoutMillis;
+
+    static {
+        int threads = DBConnector.getMaxPoolSize();
+        int queueCapacity = DBConnector.getIntProperty("async.queueCapacity", 1000);
+        defaultTimeoutMillis = DBConnector.getLongProperty("async.timeoutMillis", 0);
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreads("corona-async"));
+        executor.allowCoreThreadTimeOut(true);
+        timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("corona-async-timer"));
+    }
+
+    ////////////////////////////////
+    // Basic database methods
+    ////////////////////////////////
+
+    public static CompletableFuture<Void> createTables() {
+        return run(Solution::createTables);
+    }
+
+    public static CompletableFuture<Void> clearTables() {
+        return run(Solution::clearTables);
+    }
+
+    public static CompletableFuture<Void> dropTables() {
+        return run(Solution::dropTables);
+    }
+
+    /**
+     * The whole of work runs on one executor thread, so the calls it makes there share its transaction.
+     */
+    public static CompletableFuture<ReturnValue> inTransaction(Consumer<UnitOfWork> work) {
+        return supply(() -> Solution.inTransaction(work));
+    }
+
+    ////////////////////////////////
+    // Basic CRUD methods
+    ////////////////////////////////
+
+    public static CompletableFuture<ReturnValue> addLab(Lab lab) {
+        return supply(() -> Solution.addLab(lab));
+    }
+
+    public static CompletableFuture<Lab> getLabProfile(Integer labID) {
+        return supply(() -> Solution.getLabProfile(labID));
+    }
+
+    public static CompletableFuture<ReturnValue> deleteLab(Lab lab) {
+        return supply(() -> Solution.deleteLab(lab));
+    }
+
+    public static CompletableFuture<ReturnValue> addEmployee(Employee employee) {
+        return supply(() -> Solution.addEmployee(employee));
+    }
+
+    public static CompletableFuture<Employee> getEmployeeProfile(Integer employeeID) {
+        return supply(() -> Solution.getEmployeeProfile(employeeID));
+    }
+
+    public static CompletableFuture<ReturnValue> deleteEmployee(Employee employee) {
+        return supply(() -> Solution.deleteEmployee(employee));
+    }
+
+    public static CompletableFuture<ReturnValue> addVaccine(Vaccine vaccine) {
+        return supply(() -> Solution.addVaccine(vaccine));
+    }
+
+    public static CompletableFuture<Vaccine> getVaccineProfile(Integer vaccineID) {
+        return supply(() -> Solution.getVaccineProfile(vaccineID));
+    }
+
+    public static CompletableFuture<ReturnValue> deleteVaccine(Vaccine vaccine) {
+        return supply(() -> Solution.deleteVaccine(vaccine));
+    }
+
+    ////////////////////////////////
+    // Basic CRUD methods
+    ////////////////////////////////
+
+    public static CompletableFuture<ReturnValue> employeeJoinLab(Integer employeeID, Integer labID, Integer salary) {
+        return supply(() -> Solution.employeeJoinLab(employeeID, labID, salary));
+    }
+
+    public static CompletableFuture<ReturnValue> employeeLeftLab(Integer labID, Integer employeeID) {
+        return supply(() -> Solution.employeeLeftLab(labID, employeeID));
+    }
+
+    public static CompletableFuture<ReturnValue> labProduceVaccine(Integer vaccineID, Integer labID) {
+        return supply(() -> Solution.labProduceVaccine(vaccineID, labID));
+    }
+
+    public static CompletableFuture<ReturnValue> labStoppedProducingVaccine(Integer labID, Integer vaccineID) {
+        return supply(() -> Solution.labStoppedProducingVaccine(labID, vaccineID));
+    }
+
+    public static CompletableFuture<ReturnValue> vaccineSold(Integer vaccineID, Integer amount) {
+        return supply(() -> Solution.vaccineSold(vaccineID, amount));
+    }
+
+    public static CompletableFuture<ReturnValue> vaccineProduced(Integer vaccineID, Integer amount) {
+        return supply(() -> Solution.vaccineProduced(vaccineID, amount));
+    }
+
+    public static CompletableFuture<VaccineState> vaccineSoldWithState(Integer vaccineID, Integer amount) {
+        return supply(() -> Solution.vaccineSoldWithState(vaccineID, amount));
+    }
+
+    public static CompletableFuture<VaccineState> vaccineProducedWithState(Integer vaccineID, Integer amount) {
+        return supply(() -> Solution.vaccineProducedWithState(vaccineID, amount));
+    }
+
+    public static CompletableFuture<Boolean> isLabPopular(Integer labID) {
+        return supply(() -> Solution.isLabPopular(labID));
+    }
+
+    public static CompletableFuture<Integer> getIncomeFromVaccine(Integer vaccineID) {
+        return supply(() -> Solution.getIncomeFromVaccine(vaccineID));
+    }
+
+    public static CompletableFuture<Integer> getTotalNumberOfWorkingVaccines() {
+        return supply(Solution::getTotalNumberOfWorkingVaccines);
+    }
+
+    public static CompletableFuture<Integer> getTotalWages(Integer labID) {
+        return supply(() -> Solution.getTotalWages(labID));
+    }
+
+    public static CompletableFuture<HashMap<Integer, Integer>> getTotalWages(Collection<Integer> labIDs) {
+        return supply(() -> Solution.getTotalWages(labIDs));
+    }
+
+    public static CompletableFuture<Integer> getBestLab() {
+        return supply(Solution::getBestLab);
+    }
+
+    public static CompletableFuture<String> getMostPopularCity() {
+        return supply(Solution::getMostPopularCity);
+    }
+
+    ////////////////////////////////////
+    // Advanced API
+    ////////////////////////////////////
+
+    public static CompletableFuture<ArrayList<Integer>> getPopularLabs() {
+        return supply(Solution::getPopularLabs);
+    }
+
+    public static CompletableFuture<ArrayList<Integer>> getMostRatedVaccines() {
+        return supply(Solution::getMostRatedVaccines);
+    }
+
+    public static CompletableFuture<ArrayList<Integer>> getMostRatedVaccines(int k) {
+        return supply(() -> Solution.getMostRatedVaccines(k));
+    }
+
+    public static CompletableFuture<ArrayList<Integer>> getCloseEmployees(Integer employeeID) {
+        return supply(() -> Solution.getCloseEmployees(employeeID));
+    }
+
+    public static CompletableFuture<ArrayList<Integer>> getCloseEmployees(Integer employeeID, Freshness freshness) {
+        return supply(() -> Solution.getCloseEmployees(employeeID, freshness));
+    }
+
+    public static CompletableFuture<HashMap<Integer, ArrayList<Integer>>> getCloseEmployeesForAll() {
+        return supply(Solution::getCloseEmployeesForAll);
+    }
+
+    ////////////////////////////////////
+    // Batch API
+    ////////////////////////////////////
+
+    public static CompletableFuture<ReturnValue[]> addLabs(List<Lab> labs) {
+        return supply(() -> Solution.addLabs(labs));
+    }
+
+    public static CompletableFuture<ReturnValue[]> addEmployees(List<Employee> employees) {
+        return supply(() -> Solution.addEmployees(employees));
+    }
+
+    public static CompletableFuture<ReturnValue[]> addVaccines(List<Vaccine> vaccines) {
+        return supply(() -> Solution.addVaccines(vaccines));
+    }
+
+    public static CompletableFuture<ReturnValue[]> employeesJoinLabs(List<EmployeeLab> assignments) {
+        return supply(() -> Solution.employeesJoinLabs(assignments));
+    }
+
+    public static CompletableFuture<ReturnValue[]> employeesLeftLabs(List<EmployeeLab> assignments) {
+        return supply(() -> Solution.employeesLeftLabs(assignments));
+    }
+
+    public static CompletableFuture<ReturnValue[]> labsProduceVaccines(List<VaccineLab> productions) {
+        return supply(() -> Solution.labsProduceVaccines(productions));
+    }
+
+    public static CompletableFuture<ReturnValue[]> labsStoppedProducingVaccines(List<VaccineLab> productions) {
+        return supply(() -> Solution.labsStoppedProducingVaccines(productions));
+    }
+
+    ////////////////////////////////////
+    // Insert-if-absent API
+    ////////////////////////////////////
+
+    public static CompletableFuture<ReturnValue> addLabIfAbsent(Lab lab) {
+        return supply(() -> Solution.addLabIfAbsent(lab));
+    }
+
+    public static CompletableFuture<ReturnValue> addEmployeeIfAbsent(Employee employee) {
+        return supply(() -> Solution.addEmployeeIfAbsent(employee));
+    }
+
+    public static CompletableFuture<ReturnValue> addVaccineIfAbsent(Vaccine vaccine) {
+        return supply(() -> Solution.addVaccineIfAbsent(vaccine));
+    }
+
+    public static CompletableFuture<ReturnValue> employeeJoinLabIfAbsent(Integer employeeID, Integer labID, Integer salary) {
+        return supply(() -> Solution.employeeJoinLabIfAbsent(employeeID, labID, salary));
+    }
+
+    public static CompletableFuture<ReturnValue> labProduceVaccineIfAbsent(Integer vaccineID, Integer labID) {
+        return supply(() -> Solution.labProduceVaccineIfAbsent(vaccineID, labID));
+    }
+
+    ////////////////////////////////////
+    // Streaming API
+    ////////////////////////////////////
+
+    public static CompletableFuture<ReturnValue> forEachLab(Consumer<Lab> consumer) {
+        return supply(() -> Solution.forEachLab(consumer));
+    }
+
+    public static CompletableFuture<ReturnValue> forEachEmployee(Consumer<Employee> consumer) {
+        return supply(() -> Solution.forEachEmployee(consumer));
+    }
+
+    public static CompletableFuture<ReturnValue> forEachVaccine(Consumer<Vaccine> consumer) {
+        return supply(() -> Solution.forEachVaccine(consumer));
+    }
+
+    public static CompletableFuture<ReturnValue> forEachVaccineLab(BiConsumer<Vaccine, Lab> consumer) {
+        return supply(() -> Solution.forEachVaccineLab(consumer));
+    }
+
+    public static CompletableFuture<ReturnValue> forEachEmployeeLab(BiConsumer<Employee, Lab> consumer) {
+        return supply(() -> Solution.forEachEmployeeLab(consumer));
+    }
+
+    ////////////////////////////////////
+    // Utility Methods
+    ////////////////////////////////////
+
+    /**
+     * Fails the future with a {@link TimeoutException} (and interrupts the call) if it has not
+     * completed within the given time.
+     */
+    public static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+        if (future.isDone()) return future;
+        Future<?> timeoutTask = timer.schedule(
+                () -> future.completeExceptionally(new TimeoutException("Timed out after " + timeout + " " + unit)),
+                timeout, unit);
+        future.whenComplete((result, error) -> timeoutTask.cancel(false));
+        return future;
+    }
+
+    public static void shutdown() {
+        executor.shutdown();
+        timer.shutdownNow();
+    }
+
+    private static CompletableFuture<Void> run(Runnable call) {
+        return supply(() -> {
+            call.run();
+            return null;
+        });
+    }
+
+    private static <T> CompletableFuture<T> supply(Supplier<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        // the executor thread while it runs the call; guarded by itself
+        Thread[] runner = new Thread[1];
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                synchronized (runner) {
+                    runner[0] = Thread.currentThread();
+                }
+                try {
+                    future.complete(call.get());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    synchronized (runner) {
+                        runner[0] = null;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        // a future completed from outside (cancel, timeout) stops the call if it is still running
+        future.whenComplete((result, error) -> {
+            if (error == null) return;
+            synchronized (runner) {
+                // the call failing by itself completes the future on its own thread
+                if (runner[0] == Thread.currentThread()) return;
+                task.cancel(true);
+                if (runner[0] != null) DBConnector.cancelRunning(runner[0]);
+            }
+        });
+
+        if (defaultTimeoutMillis > 0) withTimeout(future, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
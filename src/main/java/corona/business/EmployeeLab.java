@@ -0,0 +1,68 @@
+package corona.business;
+
+import java.util.Objects;
+
+
+public class EmployeeLab {
+    @Override
+    public int hashCode() {
+        return Objects.hash(employeeId, labId, salary);
+    }
+
+    Integer employeeId = null;
+    Integer labId = null;
+    Integer salary = null;
+
+    public EmployeeLab() {
+    }
+
+    public EmployeeLab(Integer employeeId, Integer labId, Integer salary) {
+        this.employeeId = employeeId;
+        this.labId = labId;
+        this.salary = salary;
+    }
+
+    public Integer getEmployeeId() {
+        return employeeId;
+    }
+
+    public void setEmployeeId(Integer employeeId) {
+        this.employeeId = employeeId;
+    }
+
+    public Integer getLabId() {
+        return labId;
+    }
+
+    public void setLabId(Integer labId) {
+        this.labId = labId;
+    }
+
+    public Integer getSalary() {
+        return salary;
+    }
+
+    public void setSalary(Integer salary) {
+        this.salary = salary;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        EmployeeLab employeeLab = (EmployeeLab) o;
+        return Objects.equals(employeeId, employeeLab.employeeId) &&
+                Objects.equals(labId, employeeLab.labId) &&
+                Objects.equals(salary, employeeLab.salary);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("EmployeeLab{");
+        sb.append("employeeId=").append(employeeId);
+        sb.append(", labId=").append(labId);
+        sb.append(", salary=").append(salary);
+        sb.append('}');
+        return sb.toString();
+    }
+}
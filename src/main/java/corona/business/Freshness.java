@@ -0,0 +1,12 @@
+package corona.business;
+
+/**
+ * How up to date the answer of an analytic query has to be.
+ *
+ * LIVE reads the plain views. SNAPSHOT reads the materialized employees_labs_view when
+ * views.materialized is on, which may lag behind the tables by up to one refresh; with it off SNAPSHOT
+ * behaves like LIVE. Only getCloseEmployees takes one.
+ */
+public enum Freshness {
+    LIVE, SNAPSHOT
+}
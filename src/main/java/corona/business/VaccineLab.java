@@ -0,0 +1,56 @@
+package corona.business;
+
+import java.util.Objects;
+
+
+public class VaccineLab {
+    @Override
+    public int hashCode() {
+        return Objects.hash(vaccineId, labId);
+    }
+
+    Integer vaccineId = null;
+    Integer labId = null;
+
+    public VaccineLab() {
+    }
+
+    public VaccineLab(Integer vaccineId, Integer labId) {
+        this.vaccineId = vaccineId;
+        this.labId = labId;
+    }
+
+    public Integer getVaccineId() {
+        return vaccineId;
+    }
+
+    public void setVaccineId(Integer vaccineId) {
+        this.vaccineId = vaccineId;
+    }
+
+    public Integer getLabId() {
+        return labId;
+    }
+
+    public void setLabId(Integer labId) {
+        this.labId = labId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        VaccineLab vaccineLab = (VaccineLab) o;
+        return Objects.equals(vaccineId, vaccineLab.vaccineId) &&
+                Objects.equals(labId, vaccineLab.labId);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("VaccineLab{");
+        sb.append("vaccineId=").append(vaccineId);
+        sb.append(", labId=").append(labId);
+        sb.append('}');
+        return sb.toString();
+    }
+}
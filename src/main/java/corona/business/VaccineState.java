@@ -0,0 +1,91 @@
+package corona.business;
+
+import java.util.Objects;
+
+
+/**
+ * The outcome of a sale or production, with the vaccine's values right after it when it succeeded.
+ */
+public class VaccineState {
+    @Override
+    public int hashCode() {
+        return Objects.hash(returnValue, cost, units, productivity, income);
+    }
+
+    ReturnValue returnValue = null;
+    int cost = -1;
+    int units = -1;
+    int productivity = -1;
+    int income = -1;
+
+    public VaccineState() {
+    }
+
+    public VaccineState(ReturnValue returnValue) {
+        this.returnValue = returnValue;
+    }
+
+    public ReturnValue getReturnValue() {
+        return returnValue;
+    }
+
+    public void setReturnValue(ReturnValue returnValue) {
+        this.returnValue = returnValue;
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    public void setCost(int cost) {
+        this.cost = cost;
+    }
+
+    public int getUnits() {
+        return units;
+    }
+
+    public void setUnits(int units) {
+        this.units = units;
+    }
+
+    public int getProductivity() {
+        return productivity;
+    }
+
+    public void setProductivity(int productivity) {
+        this.productivity = productivity;
+    }
+
+    public int getIncome() {
+        return income;
+    }
+
+    public void setIncome(int income) {
+        this.income = income;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        VaccineState state = (VaccineState) o;
+        return returnValue == state.returnValue &&
+                cost == state.cost &&
+                units == state.units &&
+                productivity == state.productivity &&
+                income == state.income;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("VaccineState{");
+        sb.append("returnValue=").append(returnValue);
+        sb.append(", cost='").append(cost).append('\'');
+        sb.append(", units='").append(units).append('\'');
+        sb.append(", productivity='").append(productivity).append('\'');
+        sb.append(", income='").append(income).append('\'');
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,235 @@
+package corona.data;
+
+import corona.business.ReturnValue;
+import org.postgresql.PGConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Loads large CSV or binary COPY streams into the corona tables.
+ *
+ * Input is streamed with COPY into an unconstrained temporary staging table, and only then merged
+ * into the real table. Rows that would violate a constraint are removed from the staging table
+ * first and reported per input row, so one bad row never aborts the whole load. Referenced rows
+ * must already exist, so load labs, employees and vaccines before the two relationship tables.
+ */
+public class BulkLoader {
+
+    public enum Format {
+        CSV("(FORMAT csv)"),
+        CSV_WITH_HEADER("(FORMAT csv, HEADER true)"),
+        BINARY("(FORMAT binary)");
+
+        private final String copyOptions;
+
+        Format(String copyOptions) {
+            this.copyOptions = copyOptions;
+        }
+    }
+
+    public enum Table {
+        LABS("labs",
+                "id, name, city, active",
+                "id integer, name text, city text, active boolean",
+                "id IS NULL OR id <= 0 OR name IS NULL OR city IS NULL OR active IS NULL",
+                "id"),
+        EMPLOYEES("employees",
+                "id, name, city",
+                "id integer, name text, city text",
+                "id IS NULL OR id <= 0 OR name IS NULL OR city IS NULL",
+                "id"),
+        VACCINES("vaccines",
+                "id, name, cost, stock, productivity, total_sales",
+                "id integer, name text, cost integer, stock integer, productivity integer, total_sales integer",
+                "id IS NULL OR id <= 0 OR name IS NULL OR cost IS NULL OR cost < 0 OR stock IS NULL OR stock < 0 " +
+                    "OR productivity IS NULL OR productivity < 0 OR total_sales IS NULL OR total_sales < 0",
+                "id"),
+        EMPLOYEES_LABS("employees_labs",
+                "employee_id, lab_id, salary",
+                "employee_id integer, lab_id integer, salary integer",
+                "employee_id IS NULL OR lab_id IS NULL OR salary IS NULL OR salary < 0",
+                "employee_id, lab_id",
+                "employee_id", "employees",
+                "lab_id", "labs"),
+        VACCINES_LABS("vaccines_labs",
+                "vaccine_id, lab_id",
+                "vaccine_id integer, lab_id integer",
+                "vaccine_id IS NULL OR lab_id IS NULL",
+                "vaccine_id, lab_id",
+                "vaccine_id", "vaccines",
+                "lab_id", "labs");
+
+        private final String name;
+        private final String columns;
+        private final String stagingColumns;
+        private final String badParams;
+        private final String key;
+        private final String[] references;
+
+        Table(String name, String columns, String stagingColumns, String badParams, String key, String... references) {
+            this.name = name;
+            this.columns = columns;
+            this.stagingColumns = stagingColumns;
+            this.badParams = badParams;
+            this.key = key;
+            this.references = references;
+        }
+
+        private String keyMatches(String left, String right) {
+            StringBuilder sb = new StringBuilder();
+            for (String column : key.split(",")) {
+                if (sb.length() > 0) sb.append(" AND ");
+                sb.append(left).append('.').append(column.trim()).append(" = ").append(right).append('.').append(column.trim());
+            }
+            return sb.toString();
+        }
+
+        /**
+         * One query per reference that takes FOR KEY SHARE locks on the referenced rows the staged rows
+         * name, in id order.
+         */
+        private String[] referenceLocks() {
+            String[] locks = new String[references.length / 2];
+            for (int i = 0; i < references.length; i += 2) {
+                // counted on the server, rather than sending every id back
+                locks[i / 2] = "SELECT count(*) FROM (" +
+                        "SELECT r.id FROM " + references[i + 1] + " r " +
+                        "WHERE r.id IN (SELECT s." + references[i] + " FROM " + STAGING_TABLE + " s) " +
+                        "ORDER BY r.id FOR KEY SHARE" +
+                        ") locked";
+            }
+            return locks;
+        }
+
+        private String missingReference() {
+            StringBuilder sb = new StringBuilder("FALSE");
+            for (int i = 0; i < references.length; i += 2) {
+                sb.append(" OR NOT EXISTS (SELECT 1 FROM ").append(references[i + 1]).append(" r ")
+                        .append("WHERE r.id = s.").append(references[i]).append(")");
+            }
+            return sb.toString();
+        }
+    }
+
+    public static class LoadReport {
+        private long rowsRead = 0;
+        private long rowsLoaded = 0;
+        private final TreeMap<Long, ReturnValue> rejectedRows = new TreeMap<>();
+
+        public long getRowsRead() {
+            return rowsRead;
+        }
+
+        public long getRowsLoaded() {
+            return rowsLoaded;
+        }
+
+        /**
+         * Rejected input rows by their 1-based position in the input (not counting a CSV header),
+         * mapped to the ReturnValue the matching add* call would have returned.
+         */
+        public Map<Long, ReturnValue> getRejectedRows() {
+            return Collections.unmodifiableMap(rejectedRows);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("LoadReport{");
+            sb.append("read=").append(rowsRead);
+            sb.append(", loaded=").append(rowsLoaded);
+            sb.append(", rejected=").append(rejectedRows.size());
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+
+    private static final String STAGING_TABLE = "corona_bulk_staging";
+
+    public static LoadReport load(Table table, InputStream input, Format format) throws SQLException, IOException {
+        LoadReport report = new LoadReport();
+
+        try (Connection connection = DBConnector.getConnection()) {
+            if (connection == null) throw new SQLException("Could not get a connection");
+            connection.setAutoCommit(false);
+
+            execute(connection, "CREATE TEMP TABLE " + STAGING_TABLE +
+                    " (line bigserial, " + table.stagingColumns + ") ON COMMIT DROP");
+
+            report.rowsRead = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                    "COPY " + STAGING_TABLE + " (" + table.columns + ") FROM STDIN WITH " + format.copyOptions,
+                    input);
+
+            execute(connection, "ANALYZE " + STAGING_TABLE);
+            // keeps concurrent writers from slipping in a duplicate between our checks and the merge
+            execute(connection, "LOCK TABLE " + table.name + " IN SHARE ROW EXCLUSIVE MODE");
+
+            reject(connection, report, ReturnValue.BAD_PARAMS,
+                    "DELETE FROM " + STAGING_TABLE + " s " +
+                        "WHERE " + table.badParams + " " +
+                        "RETURNING s.line");
+            // so that a referenced row cannot be deleted between the check below and the merge, which
+            // would abort the whole load with a foreign key violation
+            for (String lock : table.referenceLocks()) {
+                try (PreparedStatement statement = connection.prepareStatement(lock)) {
+                    statement.executeQuery().close();
+                }
+            }
+            // before the duplicates, so a row repeating one with a missing reference gets NOT_EXISTS too,
+            // rather than ALREADY_EXISTS for a row that was never loaded
+            if (table.references.length > 0) {
+                reject(connection, report, ReturnValue.NOT_EXISTS,
+                        "DELETE FROM " + STAGING_TABLE + " s " +
+                            "WHERE " + table.missingReference() + " " +
+                            "RETURNING s.line");
+            }
+            reject(connection, report, ReturnValue.ALREADY_EXISTS,
+                    "DELETE FROM " + STAGING_TABLE + " s " +
+                        "WHERE s.line IN (" +
+                        "   SELECT d.line FROM (" +
+                        "       SELECT line, row_number() OVER (PARTITION BY " + table.key + " ORDER BY line) AS position " +
+                        "       FROM " + STAGING_TABLE +
+                        "   ) d WHERE d.position > 1" +
+                        ") " +
+                        "RETURNING s.line");
+            reject(connection, report, ReturnValue.ALREADY_EXISTS,
+                    "DELETE FROM " + STAGING_TABLE + " s " +
+                        "USING " + table.name + " t " +
+                        "WHERE " + table.keyMatches("t", "s") + " " +
+                        "RETURNING s.line");
+
+            report.rowsLoaded = execute(connection,
+                    "INSERT INTO " + table.name + " (" + table.columns + ") " +
+                        "SELECT " + table.columns + " FROM " + STAGING_TABLE + " " +
+                        "ORDER BY " + table.key);
+
+            connection.commit();
+        }
+
+        if (table == Table.EMPLOYEES_LABS) ViewRefresher.recordWrites((int) report.rowsLoaded);
+        if (table == Table.LABS || table == Table.EMPLOYEES_LABS) CloseEmployeesIndex.invalidate();
+        return report;
+    }
+
+    private static int execute(Connection connection, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            return statement.executeUpdate();
+        }
+    }
+
+    private static void reject(Connection connection, LoadReport report, ReturnValue reason, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                report.rejectedRows.put(resultSet.getLong(1), reason);
+            }
+        }
+    }
+}
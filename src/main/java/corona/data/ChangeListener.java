@@ -0,0 +1,225 @@
+package corona.data;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the local caches of this JVM coherent with writes made by other nodes.
+ *
+ * While notify.enabled is on, createTables installs triggers that NOTIFY the corona_changes channel
+ * with the key of every changed row ("table:key,...") or, for TRUNCATE, just the table name.
+ * A daemon thread LISTENs on its own connection (not a pooled one, the pool would hand it to others)
+ * and passes every change to the registered handlers. After a lost connection it cannot know what it
+ * missed, so it reports "everything changed" once it is listening again.
+ *
+ * Off by default: Postgres serializes the commits of notifying transactions behind one database-wide
+ * lock, and a set-based write queues one notification per row. Only turn it on when several nodes
+ * cache the same tables.
+ */
+public class ChangeListener {
+
+    public interface ChangeHandler {
+        /**
+         * @param table the changed table, or null when any table may have changed
+         * @param key   the key columns of the changed row, or null when any row may have changed
+         */
+        void changed(String table, String[] key);
+    }
+
+    public static final String CHANNEL = "corona_changes";
+
+    private static final String[][] TABLES = {
+            // inserts cannot make a cached entity stale, only cached memberships
+            { "labs", "UPDATE OR DELETE", "id" },
+            { "employees", "UPDATE OR DELETE", "id" },
+            { "vaccines", "UPDATE OR DELETE", "id" },
+            { "employees_labs", "INSERT OR UPDATE OR DELETE", "employee_id", "lab_id" },
+            { "vaccines_labs", "INSERT OR UPDATE OR DELETE", "vaccine_id", "lab_id" },
+    };
+
+    private static volatile boolean enabled = DBConnector.getBooleanProperty("notify.enabled", false);
+    private static final long pollIntervalMillis = DBConnector.getLongProperty("notify.pollIntervalMillis", 200);
+    private static final long reconnectDelayMillis = DBConnector.getLongProperty("notify.reconnectDelayMillis", 1000);
+
+    private static final List<ChangeHandler> handlers = new CopyOnWriteArrayList<>();
+    private static final AtomicLong notificationsReceived = new AtomicLong();
+    private static volatile Thread listener;
+
+    static {
+        handlers.add((table, key) -> {
+            if (table == null) EntityCache.invalidateAllCaches();
+            else if (key == null) EntityCache.invalidateAll(table);
+            else if (key.length == 1) EntityCache.invalidate(table, Integer.valueOf(key[0]));
+        });
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Overrides notify.enabled, and starts or stops the listener to match; only while the tables are
+     * dropped, since it changes what createTables creates.
+     */
+    public static void setEnabled(boolean enabled) {
+        ChangeListener.enabled = enabled;
+        if (enabled) start();
+        else stop();
+    }
+
+    public static void addHandler(ChangeHandler handler) {
+        handlers.add(handler);
+    }
+
+    public static void removeHandler(ChangeHandler handler) {
+        handlers.remove(handler);
+    }
+
+    /**
+     * Starts the listener thread, unless it is running or notify.enabled is off.
+     */
+    public static synchronized void start() {
+        if (!enabled || listener != null) return;
+        listener = new Thread(ChangeListener::listen, "corona-change-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    public static synchronized void stop() {
+        if (listener != null) listener.interrupt();
+        listener = null;
+    }
+
+    public static long getNotificationsReceived() {
+        return notificationsReceived.get();
+    }
+
+    /**
+     * DDL for the notifying triggers; run after the tables have been created.
+     */
+    public static String[] createStatements() {
+        if (!enabled) return new String[0];
+
+        String[] statements = new String[2 + TABLES.length * 2];
+        statements[0] =
+                "CREATE OR REPLACE FUNCTION corona_row_key(changed json, columns text[]) RETURNS text AS $$ " +
+                    "   SELECT string_agg(changed ->> k.name, ',' ORDER BY k.position) " +
+                    "   FROM unnest(columns) WITH ORDINALITY AS k(name, position) " +
+                    "$$ LANGUAGE sql IMMUTABLE";
+        statements[1] =
+                "CREATE OR REPLACE FUNCTION corona_notify_change() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   IF TG_LEVEL = 'STATEMENT' THEN " +
+                    "       PERFORM pg_notify('" + CHANNEL + "', TG_TABLE_NAME); " +
+                    "       RETURN NULL; " +
+                    "   END IF; " +
+                    // identical payloads within one transaction are delivered once
+                    "   IF TG_OP IN ('UPDATE', 'DELETE') THEN " +
+                    "       PERFORM pg_notify('" + CHANNEL + "', TG_TABLE_NAME || ':' || corona_row_key(row_to_json(OLD), TG_ARGV)); " +
+                    "   END IF; " +
+                    "   IF TG_OP IN ('INSERT', 'UPDATE') THEN " +
+                    "       PERFORM pg_notify('" + CHANNEL + "', TG_TABLE_NAME || ':' || corona_row_key(row_to_json(NEW), TG_ARGV)); " +
+                    "   END IF; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql";
+
+        for (int i = 0; i < TABLES.length; i++) {
+            String table = TABLES[i][0];
+            StringBuilder keyColumns = new StringBuilder();
+            for (int column = 2; column < TABLES[i].length; column++) {
+                if (column > 2) keyColumns.append(", ");
+                keyColumns.append('\'').append(TABLES[i][column]).append('\'');
+            }
+            statements[2 + 2 * i] = "CREATE TRIGGER " + table + "_notify " +
+                    "AFTER " + TABLES[i][1] + " ON " + table + " " +
+                    "FOR EACH ROW EXECUTE PROCEDURE corona_notify_change(" + keyColumns + ")";
+            statements[3 + 2 * i] = "CREATE TRIGGER " + table + "_notify_truncate " +
+                    "AFTER TRUNCATE ON " + table + " " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE corona_notify_change()";
+        }
+        return statements;
+    }
+
+    /**
+     * DDL that removes what {@link #createStatements()} left behind once the tables are dropped.
+     */
+    public static String[] dropStatements() {
+        if (!enabled) return new String[0];
+        return new String[] {
+                "DROP FUNCTION IF EXISTS corona_notify_change()",
+                "DROP FUNCTION IF EXISTS corona_row_key(json, text[])"
+        };
+    }
+
+    private static void listen() {
+        Connection connection = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (connection == null) {
+                    connection = DBConnector.openDedicatedConnection();
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("LISTEN " + CHANNEL);
+                    }
+                    // whatever happened while we were not listening is lost
+                    dispatch(null, null);
+                }
+
+                // this driver only reads pending notifications during a round trip
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("SELECT 1");
+                }
+                PGNotification[] notifications = connection.unwrap(PGConnection.class).getNotifications();
+                if (notifications != null) {
+                    for (PGNotification notification : notifications) {
+                        notificationsReceived.incrementAndGet();
+                        String payload = notification.getParameter();
+                        int separator = payload.indexOf(':');
+                        if (separator < 0) dispatch(payload, null);
+                        else dispatch(payload.substring(0, separator), payload.substring(separator + 1).split(","));
+                    }
+                }
+
+                Thread.sleep(pollIntervalMillis);
+            } catch (SQLException e) {
+                //e.printStackTrace()();
+                closeQuietly(connection);
+                connection = null;
+                try {
+                    Thread.sleep(reconnectDelayMillis);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        closeQuietly(connection);
+    }
+
+    private static void dispatch(String table, String[] key) {
+        for (ChangeHandler handler : handlers) {
+            try {
+                handler.changed(table, key);
+            } catch (RuntimeException e) {
+                System.out.println("Change handler failed! " + e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            //e.printStackTrace()();
+        }
+    }
+}
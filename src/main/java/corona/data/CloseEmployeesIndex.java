@@ -0,0 +1,362 @@
+package corona.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * In-memory answer to getCloseEmployees: which employees work in the cities of a given employee's labs.
+ *
+ * Employee Y is close to X when the labs Y works in that lie in one of X's n distinct lab cities
+ * number at least n / 2. The index keeps, per city, how many of those labs every employee works in,
+ * as arrays sorted by employee id, so the count for every candidate is a merge of X's cities instead
+ * of three scans of the view.
+ *
+ * The index is loaded from one snapshot on first use, without holding the lock: calls made meanwhile
+ * ask the database, and changes made meanwhile are replayed on what was loaded. It is then kept up to
+ * date by Solution after each successful join, leave, addLab and deleteLab. A membership change is not
+ * taken from the caller but re-read from employees_labs, one (employee, lab) pair at a time, so
+ * whichever recheck of a pair runs last leaves the committed answer, and a change seen twice (locally
+ * and through the {@link ChangeListener}) is harmless. Anything harder to follow (bulk loads,
+ * set-based calls, DDL, a lost listener) drops the index, and the next call reloads it. Changes made
+ * in a {@link UnitOfWork} are applied once it commits, and the index is not used inside one.
+ */
+public class CloseEmployeesIndex {
+
+    private static final boolean enabled = DBConnector.getBooleanProperty("index.closeEmployees", true);
+    private static final int[] NO_LABS = new int[0];
+
+    // serialize the recheck of a pair, so an older read is never applied after a newer one
+    private static final ReentrantLock[] pairLocks = new ReentrantLock[64];
+
+    private static State state;
+    // the changes applied while a load runs, to replay on what it loaded; null when none runs
+    private static ArrayList<Predicate<State>> missed;
+    // bumped by invalidate(), so a load that started before it is thrown away
+    private static long generation;
+
+    static {
+        for (int i = 0; i < pairLocks.length; i++) pairLocks[i] = new ReentrantLock();
+
+        ChangeListener.addHandler((table, key) -> {
+            if (table == null || "labs".equals(table)) invalidate();
+            else if ("employees_labs".equals(table)) {
+                if (key == null || key.length != 2) invalidate();
+                else membershipChanged(Integer.valueOf(key[0]), Integer.valueOf(key[1]));
+            }
+        });
+    }
+
+    /**
+     * Sorted keys, each with a count above zero.
+     */
+    private static class Counts {
+        private int[] keys = new int[4];
+        private int[] counts = new int[4];
+        private int size;
+
+        /**
+         * Adds delta to the count of key; returns the number of keys left.
+         */
+        private int add(int key, int delta) {
+            int i = Arrays.binarySearch(keys, 0, size, key);
+            if (i >= 0) {
+                counts[i] += delta;
+                if (counts[i] == 0) {
+                    System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+                    System.arraycopy(counts, i + 1, counts, i, size - i - 1);
+                    size--;
+                }
+                return size;
+            }
+
+            i = -i - 1;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                counts = Arrays.copyOf(counts, 2 * size);
+            }
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            keys[i] = key;
+            counts[i] = delta;
+            return ++size;
+        }
+    }
+
+    private static class State {
+        private final HashMap<String, Integer> cityIds = new HashMap<>();
+        private final HashMap<Integer, Integer> labCities = new HashMap<>();
+        // employee -> the employee's labs, sorted
+        private final HashMap<Integer, int[]> employeeLabs = new HashMap<>();
+        // employee -> number of the employee's labs per city id, and city id -> the same per employee
+        private final HashMap<Integer, Counts> employeeCities = new HashMap<>();
+        private final ArrayList<Counts> cityEmployees = new ArrayList<>();
+
+        private boolean addLab(int labId, String city) {
+            Integer cityId = cityIds.get(city);
+            if (cityId == null) {
+                cityId = cityIds.size();
+                cityIds.put(city, cityId);
+                cityEmployees.add(new Counts());
+            }
+            labCities.put(labId, cityId);
+            return true;
+        }
+
+        private boolean deleteLab(int labId) {
+            // a lab can only be deleted once nobody works in it
+            labCities.remove(labId);
+            return true;
+        }
+
+        /**
+         * Returns false if the lab is unknown, in which case the index cannot follow.
+         */
+        private boolean setMembership(int employeeId, int labId, boolean exists) {
+            Integer cityId = labCities.get(labId);
+            if (cityId == null) return !exists;
+
+            int[] labs = employeeLabs.getOrDefault(employeeId, NO_LABS);
+            int i = Arrays.binarySearch(labs, labId);
+            if (exists == i >= 0) return true;
+
+            int[] changed;
+            if (exists) {
+                i = -i - 1;
+                changed = new int[labs.length + 1];
+                System.arraycopy(labs, 0, changed, 0, i);
+                changed[i] = labId;
+                System.arraycopy(labs, i, changed, i + 1, labs.length - i);
+            } else {
+                changed = new int[labs.length - 1];
+                System.arraycopy(labs, 0, changed, 0, i);
+                System.arraycopy(labs, i + 1, changed, i, changed.length - i);
+            }
+            if (changed.length == 0) employeeLabs.remove(employeeId);
+            else employeeLabs.put(employeeId, changed);
+
+            int delta = exists ? 1 : -1;
+            Counts cities = employeeCities.computeIfAbsent(employeeId, id -> new Counts());
+            if (cities.add(cityId, delta) == 0) employeeCities.remove(employeeId);
+            cityEmployees.get(cityId).add(employeeId, delta);
+            return true;
+        }
+
+        private ArrayList<Integer> closeEmployees(int employeeId, int limit) {
+            ArrayList<Integer> result = new ArrayList<>();
+            Counts cities = employeeCities.get(employeeId);
+            if (cities == null) return result;
+
+            // merge the employees of X's cities in id order, summing what each has in them
+            int n = cities.size;
+            Counts[] employees = new Counts[n];
+            int[] positions = new int[n];
+            for (int i = 0; i < n; i++) employees[i] = cityEmployees.get(cities.keys[i]);
+
+            while (result.size() < limit) {
+                long next = Long.MAX_VALUE;
+                for (int i = 0; i < n; i++) {
+                    if (positions[i] < employees[i].size) next = Math.min(next, employees[i].keys[positions[i]]);
+                }
+                if (next == Long.MAX_VALUE) break;
+
+                int shared = 0;
+                for (int i = 0; i < n; i++) {
+                    if (positions[i] < employees[i].size && employees[i].keys[positions[i]] == next)
+                        shared += employees[i].counts[positions[i]++];
+                }
+                // same as 100 * shared / cities >= 50 in integer arithmetic
+                if (next != employeeId && 2 * shared >= n) result.add((int) next);
+            }
+            return result;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The close employees of one employee, in id order, or null if the index is off, cannot be loaded
+     * or is being loaded by another thread.
+     */
+    public static ArrayList<Integer> closeEmployees(int employeeId, int limit) {
+        // the index only knows committed rows, a unit of work asks its own transaction
+        if (!enabled || UnitOfWork.isActive() || !ensureLoaded()) return null;
+        synchronized (CloseEmployeesIndex.class) {
+            // dropped again since
+            return state == null ? null : state.closeEmployees(employeeId, limit);
+        }
+    }
+
+    /**
+     * The close employees of every employee that works in a lab, in one pass; employees that are not
+     * in the result have none. Works with the index off too, from a throwaway snapshot.
+     */
+    public static HashMap<Integer, ArrayList<Integer>> closeEmployeesForAll(int limit) throws SQLException {
+        if (enabled && !UnitOfWork.isActive() && ensureLoaded()) {
+            synchronized (CloseEmployeesIndex.class) {
+                if (state != null) return closeEmployeesForAll(state, limit);
+            }
+        }
+        return closeEmployeesForAll(load(), limit);
+    }
+
+    public static void labAdded(int labId, String city) {
+        if (UnitOfWork.afterCommit(() -> labAdded(labId, city))) return;
+        apply(loaded -> loaded.addLab(labId, city));
+    }
+
+    public static void labDeleted(int labId) {
+        if (UnitOfWork.afterCommit(() -> labDeleted(labId))) return;
+        apply(loaded -> loaded.deleteLab(labId));
+    }
+
+    /**
+     * Brings one membership in line with employees_labs, after this node or another one changed it.
+     */
+    public static void membershipChanged(int employeeId, int labId) {
+        membershipsChanged(new int[] { employeeId }, new int[] { labId });
+    }
+
+    /**
+     * Brings several memberships in line with employees_labs, with one query.
+     */
+    public static void membershipsChanged(int[] employeeIds, int[] labIds) {
+        if (employeeIds.length == 0) return;
+        if (UnitOfWork.afterCommit(() -> membershipsChanged(employeeIds, labIds))) return;
+        synchronized (CloseEmployeesIndex.class) {
+            // the next load reads them anyway
+            if (state == null && missed == null) return;
+        }
+
+        // in index order, so two rechecks never wait for each other's locks
+        int[] stripes = new int[employeeIds.length];
+        for (int i = 0; i < stripes.length; i++) stripes[i] = stripe(employeeIds[i], labIds[i]);
+        stripes = Arrays.stream(stripes).sorted().distinct().toArray();
+        for (int stripe : stripes) pairLocks[stripe].lock();
+        try {
+            boolean[] exists = new boolean[employeeIds.length];
+            try (Connection connection = DBConnector.getConnection()) {
+                if (connection == null) throw new SQLException("Could not get a connection");
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT EXISTS (" +
+                            "   SELECT 1 FROM employees_labs el " +
+                            "   WHERE el.employee_id = p.employee_id AND el.lab_id = p.lab_id" +
+                            ") " +
+                            "FROM unnest(?::integer[], ?::integer[]) WITH ORDINALITY AS p(employee_id, lab_id, position) " +
+                            "ORDER BY p.position")) {
+                    statement.setArray(1, connection.createArrayOf("integer", Arrays.stream(employeeIds).boxed().toArray()));
+                    statement.setArray(2, connection.createArrayOf("integer", Arrays.stream(labIds).boxed().toArray()));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        for (int i = 0; i < exists.length && resultSet.next(); i++) exists[i] = resultSet.getBoolean(1);
+                    }
+                }
+            } catch (SQLException e) {
+                invalidate();
+                return;
+            }
+
+            for (int i = 0; i < exists.length; i++) {
+                int employeeId = employeeIds[i];
+                int labId = labIds[i];
+                boolean present = exists[i];
+                apply(loaded -> loaded.setMembership(employeeId, labId, present));
+            }
+        } finally {
+            for (int stripe : stripes) pairLocks[stripe].unlock();
+        }
+    }
+
+    public static void invalidate() {
+        // dropping it now is always safe, but a reload meanwhile would not see the unit of work either
+        UnitOfWork.afterCompletion(CloseEmployeesIndex::invalidate);
+        synchronized (CloseEmployeesIndex.class) {
+            state = null;
+            generation++;
+        }
+    }
+
+    private static HashMap<Integer, ArrayList<Integer>> closeEmployeesForAll(State snapshot, int limit) {
+        HashMap<Integer, ArrayList<Integer>> result = new HashMap<>();
+        for (Integer employeeId : snapshot.employeeCities.keySet()) {
+            result.put(employeeId, snapshot.closeEmployees(employeeId, limit));
+        }
+        return result;
+    }
+
+    /**
+     * Applies a change to the index, and to the one being loaded; drops the index if the change returns
+     * false.
+     */
+    private static synchronized void apply(Predicate<State> change) {
+        if (missed != null) missed.add(change);
+        if (state != null && !change.test(state)) state = null;
+    }
+
+    private static int stripe(int employeeId, int labId) {
+        return Math.floorMod(31 * employeeId + labId, pairLocks.length);
+    }
+
+    /**
+     * Returns true once the index is loaded; false if it cannot be, or another thread is loading it.
+     */
+    private static boolean ensureLoaded() {
+        long startedAt;
+        synchronized (CloseEmployeesIndex.class) {
+            if (state != null) return true;
+            if (missed != null) return false;
+            missed = new ArrayList<>();
+            startedAt = generation;
+        }
+
+        State loaded = null;
+        try {
+            loaded = load();
+        } catch (SQLException e) {
+            //e.printStackTrace()();
+        } finally {
+            synchronized (CloseEmployeesIndex.class) {
+                ArrayList<Predicate<State>> changes = missed;
+                missed = null;
+                boolean current = loaded != null && generation == startedAt;
+                for (int i = 0; current && i < changes.size(); i++) current = changes.get(i).test(loaded);
+                if (current) state = loaded;
+            }
+        }
+        synchronized (CloseEmployeesIndex.class) {
+            return state != null;
+        }
+    }
+
+    private static State load() throws SQLException {
+        State loaded = new State();
+        try (Connection connection = DBConnector.getConnection()) {
+            if (connection == null) throw new SQLException("Could not get a connection");
+
+            // one statement, so labs and memberships come from the same snapshot; in employee order, so
+            // every city's employees are appended to the end of its arrays
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT l.id, l.city, el.employee_id " +
+                        "FROM labs l " +
+                        "LEFT JOIN employees_labs el ON el.lab_id = l.id " +
+                        "ORDER BY el.employee_id NULLS FIRST")) {
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        int labId = resultSet.getInt(1);
+                        loaded.addLab(labId, resultSet.getString(2));
+                        int employeeId = resultSet.getInt(3);
+                        if (!resultSet.wasNull()) loaded.setMembership(employeeId, labId, true);
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,255 @@
+package corona.data;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of physical connections to one database.
+ *
+ * Connections handed out by {@link #borrow()} go back to the pool when they are closed.
+ * Idle connections are kept in LIFO order so the busiest connections stay warm and the
+ * surplus ones age out through idle eviction.
+ */
+public class ConnectionPool {
+
+    private final String name;
+    private final String url;
+    private final Properties driverProperties;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+    private final long leakDetectionThresholdMillis;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final Set<PooledConnection> active = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong totalBorrowNanos = new AtomicLong();
+    private final AtomicLong maxBorrowNanos = new AtomicLong();
+    private final AtomicLong leakedCount = new AtomicLong();
+    private final ScheduledExecutorService housekeeper;
+
+    private final AtomicLong statementCacheGeneration = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String name, String url, Properties driverProperties, Properties poolProperties) {
+        this.name = name;
+        this.url = url;
+        this.driverProperties = driverProperties;
+
+        this.maxSize = Math.max(1, intProperty(poolProperties, "pool.maxSize", 10));
+        this.minSize = Math.min(maxSize, Math.max(0, intProperty(poolProperties, "pool.minSize", 1)));
+        this.idleTimeoutMillis = longProperty(poolProperties, "pool.idleTimeoutMillis", 300000);
+        this.borrowTimeoutMillis = longProperty(poolProperties, "pool.borrowTimeoutMillis", 30000);
+        this.validationIntervalMillis = longProperty(poolProperties, "pool.validationIntervalMillis", 1000);
+        this.validationTimeoutSeconds = intProperty(poolProperties, "pool.validationTimeoutSeconds", 5);
+        this.statementCacheSize = intProperty(poolProperties, "pool.statementCacheSize", 64);
+        this.leakDetectionThresholdMillis = longProperty(poolProperties, "pool.leakDetectionThresholdMillis", 0);
+
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "corona-pool-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.min(idleTimeoutMillis / 2, 30000);
+        if (leakDetectionThresholdMillis > 0) period = Math.min(period, leakDetectionThresholdMillis / 2);
+        period = Math.max(1000, period);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool " + name + " is closed");
+        long startedAt = System.nanoTime();
+
+        waiting.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw new SQLTimeoutException("Timed out after " + borrowTimeoutMillis
+                        + "ms waiting for a connection from pool " + name + " " + getMetrics());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection from pool " + name, e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (pooled.validate(validationIntervalMillis, validationTimeoutSeconds)) break;
+                discard(pooled);
+            }
+            if (pooled == null) pooled = open();
+
+            Connection connection = pooled.checkout(statementCacheGeneration.get(), leakDetectionThresholdMillis > 0);
+            active.add(pooled);
+            recordBorrow(System.nanoTime() - startedAt);
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection pooled) {
+        active.remove(pooled);
+        if (pooled.isLeakReported())
+            System.out.println("Connection from pool " + name + " reported as leaked was returned after "
+                    + pooled.getHeldMillis() + "ms by " + pooled.getBorrowSite());
+        try {
+            if (closed || !pooled.reset()) discard(pooled);
+            else idle.offerFirst(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    public PoolMetrics getMetrics() {
+        return new PoolMetrics(name, maxSize, active.size(), idle.size(), waiting.get(),
+                borrowCount.get(), totalBorrowNanos.get(), maxBorrowNanos.get(), leakedCount.get(),
+                statementCacheHits.get(), statementCacheMisses.get());
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    /**
+     * Drops every cached statement, lazily for connections that are currently borrowed.
+     * Call after DDL so no connection keeps executing statements planned against the old schema.
+     */
+    public void clearStatementCaches() {
+        statementCacheGeneration.incrementAndGet();
+    }
+
+    /**
+     * Cancels the statements running on the connections thread has borrowed.
+     */
+    public void cancelRunning(Thread thread) {
+        for (PooledConnection pooled : active) {
+            if (pooled.getBorrower() == thread) pooled.cancelRunning();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null)
+            discard(pooled);
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, driverProperties);
+        totalConnections.incrementAndGet();
+        StatementCache statementCache = new StatementCache(statementCacheSize, statementCacheHits, statementCacheMisses);
+        return new PooledConnection(this, physical, statementCache, statementCacheGeneration.get());
+    }
+
+    private void discard(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+        pooled.closePhysical();
+    }
+
+    private void recordBorrow(long nanos) {
+        borrowCount.incrementAndGet();
+        totalBorrowNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxBorrowNanos.get()) && !maxBorrowNanos.compareAndSet(max, nanos)) {
+            // retry until we either win or somebody else recorded a longer borrow
+        }
+    }
+
+    private void detectLeaks() {
+        for (PooledConnection pooled : active) {
+            if (pooled.isLeakReported() || pooled.getHeldMillis() < leakDetectionThresholdMillis) continue;
+            if (!pooled.markLeakReported()) continue;
+
+            leakedCount.incrementAndGet();
+            System.out.println("Possible connection leak in pool " + name + ": connection held for "
+                    + pooled.getHeldMillis() + "ms by thread " + pooled.getBorrowThread()
+                    + ", acquired at " + pooled.getBorrowSite());
+            Throwable trace = pooled.getBorrowStackTrace();
+            if (trace != null) {
+                for (StackTraceElement frame : trace.getStackTrace()) System.out.println("\tat " + frame);
+            }
+        }
+    }
+
+    private void housekeep() {
+        if (leakDetectionThresholdMillis > 0) detectLeaks();
+
+        long now = System.currentTimeMillis();
+
+        // the oldest idle connections sit at the tail of the deque
+        while (totalConnections.get() > minSize) {
+            PooledConnection pooled = idle.pollLast();
+            if (pooled == null) break;
+            if (now - pooled.getLastReleasedAt() < idleTimeoutMillis) {
+                idle.offerLast(pooled);
+                break;
+            }
+            discard(pooled);
+        }
+
+        while (!closed && totalConnections.get() < minSize && permits.tryAcquire()) {
+            try {
+                idle.offerLast(open());
+            } catch (SQLException e) {
+                break;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    static int intProperty(Properties props, String key, int defaultValue) {
+        String value = props.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    static long longProperty(Properties props, String key, long defaultValue) {
+        String value = props.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+}
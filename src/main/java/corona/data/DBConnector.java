@@ -10,48 +10,253 @@ import java.util.Properties;
 
 public class DBConnector {
 
+    private static volatile ConnectionPool pool;
+    private static volatile ReplicaRouter replicaRouter;
+    private static volatile Properties properties;
+
     public static Connection getConnection()
     {
+        ConnectionPool connectionPool = getPool();
+        if (connectionPool == null) return null;
+
         try {
 
-            Class.forName("org.postgresql.Driver");
+            Connection unitOfWork = UnitOfWork.enlist();
+            if (unitOfWork != null) return unitOfWork;
 
-        } catch (ClassNotFoundException e) {
+            return connectionPool.borrow();
+
+        } catch (SQLException e) {
+
+            System.out.println("Connection Failed!");
             //e.printStackTrace()();
             return null;
 
         }
+    }
 
-        ClassLoader loader = Thread.currentThread().getContextClassLoader();
-        InputStream stream = loader.getResourceAsStream("config.properties");
-        Properties props = new Properties();
-        try {
-            props.load(stream);
-        } catch (IOException e) {
-            //e.printStackTrace()();
+    /**
+     * A connection for queries that only read. It points at the read replica while one is configured,
+     * reachable and within replica.maxLagMillis of the primary, and at the primary otherwise; inside a
+     * {@link UnitOfWork}, at its transaction.
+     */
+    public static Connection getReadOnlyConnection()
+    {
+        if (getPool() == null) return null;
+        // a unit of work reads what it wrote
+        if (UnitOfWork.isActive()) return getConnection();
+
+        ReplicaRouter router = replicaRouter;
+        if (router != null) {
+            Connection connection = router.borrow();
+            if (connection != null) return connection;
         }
+        return getConnection();
+    }
 
-        Connection connection = null;
+    public static void closePool()
+    {
+        synchronized (DBConnector.class) {
+            if (pool != null) pool.close();
+            if (replicaRouter != null) replicaRouter.getPool().close();
+            pool = null;
+            replicaRouter = null;
+        }
+    }
 
+    public static PoolMetrics getPoolMetrics()
+    {
+        ConnectionPool connectionPool = pool;
+        return connectionPool == null ? null : connectionPool.getMetrics();
+    }
 
-        try {
+    public static PoolMetrics getReplicaPoolMetrics()
+    {
+        ReplicaRouter router = replicaRouter;
+        return router == null ? null : router.getPool().getMetrics();
+    }
 
-            connection = DriverManager.getConnection(props.getProperty("database"), props);
+    public static long getReplicaLagMillis()
+    {
+        ReplicaRouter router = replicaRouter;
+        return router == null ? -1 : router.getLastLagMillis();
+    }
 
-        } catch (SQLException e) {
+    /**
+     * Forgets everything cached about the schema; call after DDL.
+     */
+    public static void schemaChanged()
+    {
+        clearStatementCaches();
+        SchemaCatalog.invalidate();
+    }
 
-            System.out.println("Connection Failed!");
-            //e.printStackTrace()();
-            return null;
+    public static void clearStatementCaches()
+    {
+        ConnectionPool connectionPool = pool;
+        if (connectionPool != null) connectionPool.clearStatementCaches();
+        ReplicaRouter router = replicaRouter;
+        if (router != null) router.getPool().clearStatementCaches();
+    }
+
+    /**
+     * Cancels the statements thread is running on connections from either pool; for callers that have
+     * given up on what that thread is doing.
+     */
+    public static void cancelRunning(Thread thread)
+    {
+        ConnectionPool connectionPool = pool;
+        if (connectionPool != null) connectionPool.cancelRunning(thread);
+        ReplicaRouter router = replicaRouter;
+        if (router != null) router.getPool().cancelRunning(thread);
+    }
+
+    public static long getStatementCacheHits()
+    {
+        ConnectionPool connectionPool = pool;
+        return connectionPool == null ? 0 : connectionPool.getStatementCacheHits();
+    }
+
+    public static long getStatementCacheMisses()
+    {
+        ConnectionPool connectionPool = pool;
+        return connectionPool == null ? 0 : connectionPool.getStatementCacheMisses();
+    }
+
+    private static ConnectionPool getPool()
+    {
+        ConnectionPool connectionPool = pool;
+        if (connectionPool != null) return connectionPool;
+
+        synchronized (DBConnector.class) {
+            if (pool != null) return pool;
+
+            try {
+
+                Class.forName("org.postgresql.Driver");
+
+            } catch (ClassNotFoundException e) {
+                //e.printStackTrace()();
+                System.out.println("Failed to make connection!");
+                return null;
+
+            }
+
+            Properties props = loadProperties();
+            Properties driverProps = driverProperties(props);
+
+            String replicaUrl = props.getProperty("replica.database", "").trim();
+            if (!replicaUrl.isEmpty()) {
+                Properties replicaDriverProps = new Properties();
+                replicaDriverProps.putAll(driverProps);
+                replicaDriverProps.setProperty("user", props.getProperty("replica.user", props.getProperty("user")));
+                replicaDriverProps.setProperty("password", props.getProperty("replica.password", props.getProperty("password")));
+
+                // a busy replica pool sends the read to the primary instead of making it wait
+                Properties replicaPoolProps = new Properties();
+                replicaPoolProps.putAll(props);
+                replicaPoolProps.setProperty("pool.borrowTimeoutMillis", props.getProperty("replica.borrowTimeoutMillis", "0"));
+
+                replicaRouter = new ReplicaRouter(
+                        new ConnectionPool("replica", replicaUrl, replicaDriverProps, replicaPoolProps),
+                        ConnectionPool.longProperty(props, "replica.maxLagMillis", 5000),
+                        ConnectionPool.longProperty(props, "replica.healthCheckIntervalMillis", 1000));
+            }
 
+            pool = new ConnectionPool("primary", props.getProperty("database"), driverProps, props);
+            return pool;
         }
+    }
+
+    public static String getProperty(String key, String defaultValue)
+    {
+        String value = loadProperties().getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Overrides a property, or removes it when value is null, for the rest of the run. Only settings
+     * read where they are used take effect, such as schema.partitions, which createTables reads.
+     */
+    public static void setProperty(String key, String value)
+    {
+        if (value == null) loadProperties().remove(key);
+        else loadProperties().setProperty(key, value);
+    }
+
+    public static int getIntProperty(String key, int defaultValue)
+    {
+        return Integer.parseInt(getProperty(key, String.valueOf(defaultValue)));
+    }
+
+    public static long getLongProperty(String key, long defaultValue)
+    {
+        return Long.parseLong(getProperty(key, String.valueOf(defaultValue)));
+    }
+
+    public static boolean getBooleanProperty(String key, boolean defaultValue)
+    {
+        return Boolean.parseBoolean(getProperty(key, String.valueOf(defaultValue)));
+    }
+
+    public static int getMaxPoolSize()
+    {
+        ConnectionPool connectionPool = getPool();
+        return connectionPool == null ? getIntProperty("pool.maxSize", 10) : connectionPool.getMaxSize();
+    }
+
+    /**
+     * A pooled connection even while a unit of work is active, for writes that must not join it.
+     */
+    static Connection getConnectionOutsideUnitOfWork() throws SQLException
+    {
+        ConnectionPool connectionPool = getPool();
+        if (connectionPool == null) return null;
+        return connectionPool.borrow();
+    }
+
+    /**
+     * A connection of its own, outside the pool, for long-lived sessions such as LISTEN.
+     */
+    static Connection openDedicatedConnection() throws SQLException
+    {
+        try {
+            Class.forName("org.postgresql.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("PostgreSQL driver not found", e);
+        }
+        Properties props = loadProperties();
+        return DriverManager.getConnection(props.getProperty("database"), driverProperties(props));
+    }
 
-        if (connection != null) {
+    static Properties loadProperties()
+    {
+        if (properties != null) return properties;
 
-        } else {
-            System.out.println("Failed to make connection!");
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        InputStream stream = loader.getResourceAsStream("config.properties");
+        Properties props = new Properties();
+        try {
+            props.load(stream);
+        } catch (IOException e) {
+            //e.printStackTrace()();
         }
-        return connection;
+        properties = props;
+        return props;
+    }
+
+    /**
+     * Only the plain keys (user, password, socketTimeout, ...) are meant for the driver,
+     * the dotted ones configure our own data layer.
+     */
+    private static Properties driverProperties(Properties props)
+    {
+        Properties driverProps = new Properties();
+        for (String key : props.stringPropertyNames()) {
+            if (!key.contains(".") && !key.equals("database"))
+                driverProps.setProperty(key, props.getProperty(key));
+        }
+        return driverProps;
     }
 
 
@@ -100,56 +305,47 @@ public class DBConnector {
         try {
             while(results.next())
             {
+                // print row by row so huge results never pile up in memory
+                sb.setLength(0);
                 sb.append("|| ");
                 for (int i =1; i <= schema.size(); i++)
                 {
                     sb.append(results.getString(i)).append(" || ");
                 }
-                sb.append(System.lineSeparator());
+                System.out.println(sb.toString());
 
             }
         } catch (SQLException e) {
             //e.printStackTrace()();
         }
-        System.out.println(sb.toString());
+        System.out.println();
 
     }
 
+    public static ArrayList<Pair<String, String>> getSchema(String tableName)
+    {
+        return SchemaCatalog.getSchema(tableName);
+    }
+
+    public static void printSchema(String tableName)
+    {
+        printSchema(getSchema(tableName));
+    }
+
     public static void printTablesSchemas()
     {
-        Connection connection = getConnection();
-        PreparedStatement pstmt = null;
-        try {
-            pstmt = connection.prepareStatement("SELECT table_name\n" +
-                    "  FROM information_schema.tables\n" +
-                    " WHERE table_schema='public'\n" +
-                    "   AND table_type='BASE TABLE';");
-            ResultSet resultSet = pstmt.executeQuery();
-            System.out.println(System.lineSeparator() + "Printing Tables Schemas");
-            while (resultSet.next())
-            {
-                String tableName = resultSet.getString("table_name");
-                System.out.println(tableName);
-                pstmt = connection.prepareStatement("SELECT * From "+ tableName);
-                ResultSet tableResultSet = pstmt.executeQuery();
-                printSchema(tableResultSet);
-            }
-            pstmt = connection.prepareStatement("SELECT table_name\n" +
-                    "  FROM information_schema.views\n" +
-                    " WHERE table_schema='public';");
+        System.out.println(System.lineSeparator() + "Printing Tables Schemas");
+        for (String tableName : SchemaCatalog.getTableNames())
+        {
+            System.out.println(tableName);
+            printSchema(tableName);
+        }
 
-            resultSet = pstmt.executeQuery();
-            System.out.println(System.lineSeparator() + "Printing Views Schemas");
-            while (resultSet.next())
-            {
-                String tableName = resultSet.getString("table_name");
-                System.out.println(tableName);
-                pstmt = connection.prepareStatement("SELECT * From "+ tableName);
-                ResultSet tableResultSet = pstmt.executeQuery();
-                printSchema(tableResultSet);
-            }
-        } catch (SQLException e) {
-            //e.printStackTrace()();
+        System.out.println(System.lineSeparator() + "Printing Views Schemas");
+        for (String viewName : SchemaCatalog.getViewNames())
+        {
+            System.out.println(viewName);
+            printSchema(viewName);
         }
     }
 }
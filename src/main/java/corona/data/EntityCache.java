@@ -0,0 +1,174 @@
+package corona.data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bounded, read-through LRU cache of rows keyed by id, with a time-to-live per entry.
+ *
+ * Every cache is registered under the name of the table it caches so writers, and the
+ * {@link ChangeListener} for writes made by other nodes, can invalidate entries by table.
+ * Values are copied on the way out because the business objects are mutable.
+ */
+public class EntityCache<V> {
+
+    private static final List<EntityCache<?>> caches = new CopyOnWriteArrayList<>();
+
+    private final String table;
+    private final boolean enabled;
+    private final int maxSize;
+    private final long ttlMillis;
+    private final UnaryOperator<V> copier;
+    private final LinkedHashMap<Integer, CachedValue<V>> entries;
+
+    // bumped by every invalidation, so a load that raced with one is never cached
+    private long version = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private static class CachedValue<V> {
+        final V value;
+        final long expiresAt;
+
+        CachedValue(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public EntityCache(String table, UnaryOperator<V> copier) {
+        this(table, DBConnector.getBooleanProperty("cache.enabled", true),
+                DBConnector.getIntProperty("cache.maxSize", 10000),
+                DBConnector.getLongProperty("cache.ttlMillis", 60000), copier);
+    }
+
+    public EntityCache(String table, boolean enabled, int maxSize, long ttlMillis, UnaryOperator<V> copier) {
+        this.table = table;
+        this.enabled = enabled && maxSize > 0;
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.copier = copier;
+        this.entries = new LinkedHashMap<Integer, CachedValue<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CachedValue<V>> eldest) {
+                if (size() <= EntityCache.this.maxSize) return false;
+                evictions++;
+                return true;
+            }
+        };
+        caches.add(this);
+        // other nodes write to the same tables
+        if (this.enabled) ChangeListener.start();
+    }
+
+    /**
+     * Returns the cached value for the key, or loads it. A loader returning null means
+     * "nothing to cache" (missing row, failed query) and is passed through as is.
+     */
+    public V get(Integer key, Function<Integer, V> loader) {
+        // inside a unit of work the loader may see rows nobody else can see yet
+        if (!enabled || UnitOfWork.isActive()) return loader.apply(key);
+
+        long loadVersion;
+        synchronized (this) {
+            CachedValue<V> entry = entries.get(key);
+            if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+                hits++;
+                return copier.apply(entry.value);
+            }
+            if (entry != null) entries.remove(key);
+            misses++;
+            loadVersion = version;
+        }
+
+        V value = loader.apply(key);
+        if (value == null) return null;
+
+        synchronized (this) {
+            if (version == loadVersion)
+                entries.put(key, new CachedValue<>(copier.apply(value), System.currentTimeMillis() + ttlMillis));
+        }
+        return value;
+    }
+
+    public void invalidate(Integer key) {
+        synchronized (this) {
+            version++;
+            entries.remove(key);
+        }
+        // others may cache the committed row meanwhile; what replaces it is only visible at the end
+        UnitOfWork.afterCompletion(() -> invalidate(key));
+    }
+
+    public void invalidateAll() {
+        synchronized (this) {
+            version++;
+            entries.clear();
+        }
+        UnitOfWork.afterCompletion(this::invalidateAll);
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public static List<EntityCache<?>> all() {
+        return new ArrayList<>(caches);
+    }
+
+    public static void invalidate(String table, Integer key) {
+        for (EntityCache<?> cache : caches) {
+            if (cache.table.equals(table)) cache.invalidate(key);
+        }
+    }
+
+    public static void invalidateAll(String table) {
+        for (EntityCache<?> cache : caches) {
+            if (cache.table.equals(table)) cache.invalidateAll();
+        }
+    }
+
+    public static void invalidateAllCaches() {
+        for (EntityCache<?> cache : caches) cache.invalidateAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("EntityCache{");
+        sb.append("table='").append(table).append('\'');
+        sb.append(", size=").append(entries.size());
+        sb.append(", hits=").append(hits);
+        sb.append(", misses=").append(misses);
+        sb.append(", evictions=").append(evictions);
+        sb.append(", hitRate=").append(String.format("%.2f", getHitRate()));
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,96 @@
+package corona.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Walks a whole table or view in key order without ever holding more than one page in memory.
+ *
+ * Pages are fetched with keyset pagination ({@code WHERE (key) > (last key) ORDER BY key LIMIT n}),
+ * so every page is an index range scan no matter how deep into the table we are, and each page is
+ * read through a server-side cursor fetchSize rows at a time. Every page runs in its own short
+ * transaction so a long scan never holds back vacuum.
+ */
+public class KeysetScanner {
+
+    public interface RowHandler {
+        void handle(ResultSet row) throws SQLException;
+    }
+
+    private final String select;
+    private final String[] keyColumns;
+    private final int pageSize;
+    private final int fetchSize;
+
+    /**
+     * @param select     a {@code SELECT ... FROM relation} without WHERE, ORDER BY or LIMIT
+     * @param keyColumns columns that uniquely identify a row, in sort order
+     */
+    public KeysetScanner(String select, String... keyColumns) {
+        this(select, DBConnector.getIntProperty("stream.pageSize", 10000),
+                DBConnector.getIntProperty("stream.fetchSize", 1000), keyColumns);
+    }
+
+    public KeysetScanner(String select, int pageSize, int fetchSize, String... keyColumns) {
+        this.select = select;
+        this.keyColumns = keyColumns;
+        this.pageSize = pageSize;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Calls the handler once per row, in key order, and returns the number of rows scanned.
+     */
+    public long scan(RowHandler handler) throws SQLException {
+        String orderBy = " ORDER BY " + String.join(", ", keyColumns) + " LIMIT ?";
+        String firstPage = select + orderBy;
+        String nextPage = select + " WHERE (" + String.join(", ", keyColumns) + ") > (" + placeholders() + ")" + orderBy;
+
+        long scanned = 0;
+        Object[] lastKey = null;
+
+        try (Connection connection = DBConnector.getReadOnlyConnection()) {
+            if (connection == null) throw new SQLException("Could not get a connection");
+            // the driver only streams through a cursor inside a transaction
+            connection.setAutoCommit(false);
+
+            while (true) {
+                int rowsInPage = 0;
+                try (PreparedStatement statement = connection.prepareStatement(lastKey == null ? firstPage : nextPage)) {
+                    statement.setFetchSize(fetchSize);
+                    int parameter = 1;
+                    if (lastKey != null) {
+                        for (Object key : lastKey) statement.setObject(parameter++, key);
+                    }
+                    statement.setInt(parameter, pageSize);
+
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            lastKey = new Object[keyColumns.length];
+                            for (int i = 0; i < keyColumns.length; i++) {
+                                lastKey[i] = resultSet.getObject(keyColumns[i]);
+                            }
+                            handler.handle(resultSet);
+                            rowsInPage++;
+                        }
+                    }
+                }
+                connection.commit();
+
+                scanned += rowsInPage;
+                if (rowsInPage < pageSize) return scanned;
+            }
+        }
+    }
+
+    private String placeholders() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+}
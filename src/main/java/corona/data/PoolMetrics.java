@@ -0,0 +1,101 @@
+package corona.data;
+
+/**
+ * A point-in-time snapshot of a {@link ConnectionPool}'s gauges and counters.
+ */
+public class PoolMetrics {
+
+    private final String poolName;
+    private final int maxSize;
+    private final int active;
+    private final int idle;
+    private final int waiting;
+    private final long borrowCount;
+    private final long totalBorrowNanos;
+    private final long maxBorrowNanos;
+    private final long leakedCount;
+    private final long statementCacheHits;
+    private final long statementCacheMisses;
+
+    PoolMetrics(String poolName, int maxSize, int active, int idle, int waiting,
+                long borrowCount, long totalBorrowNanos, long maxBorrowNanos, long leakedCount,
+                long statementCacheHits, long statementCacheMisses) {
+        this.poolName = poolName;
+        this.maxSize = maxSize;
+        this.active = active;
+        this.idle = idle;
+        this.waiting = waiting;
+        this.borrowCount = borrowCount;
+        this.totalBorrowNanos = totalBorrowNanos;
+        this.maxBorrowNanos = maxBorrowNanos;
+        this.leakedCount = leakedCount;
+        this.statementCacheHits = statementCacheHits;
+        this.statementCacheMisses = statementCacheMisses;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public int getIdle() {
+        return idle;
+    }
+
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    public double getAverageBorrowMillis() {
+        return borrowCount == 0 ? 0 : totalBorrowNanos / 1e6 / borrowCount;
+    }
+
+    public double getMaxBorrowMillis() {
+        return maxBorrowNanos / 1e6;
+    }
+
+    public long getLeakedCount() {
+        return leakedCount;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits;
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses;
+    }
+
+    public double getStatementCacheHitRate() {
+        long lookups = statementCacheHits + statementCacheMisses;
+        return lookups == 0 ? 0 : (double) statementCacheHits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("PoolMetrics{");
+        sb.append("pool='").append(poolName).append('\'');
+        sb.append(", active=").append(active);
+        sb.append(", idle=").append(idle);
+        sb.append(", max=").append(maxSize);
+        sb.append(", waiting=").append(waiting);
+        sb.append(", borrows=").append(borrowCount);
+        sb.append(", avgBorrowMillis=").append(String.format("%.3f", getAverageBorrowMillis()));
+        sb.append(", maxBorrowMillis=").append(String.format("%.3f", getMaxBorrowMillis()));
+        sb.append(", leaked=").append(leakedCount);
+        sb.append(", statementCacheHitRate=").append(String.format("%.2f", getStatementCacheHitRate()));
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,245 @@
+package corona.data;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A physical connection owned by a {@link ConnectionPool}.
+ *
+ * Every checkout hands out a fresh proxy, so closing a stale handle twice can never
+ * return the same physical connection to the pool twice.
+ */
+class PooledConnection {
+
+    private final ConnectionPool pool;
+    private final Connection physical;
+    private final List<Statement> openStatements = new ArrayList<>();
+    // every statement handed out since the checkout, cached or not; guarded by itself
+    private final List<Statement> handedOut = new ArrayList<>();
+    private final StatementCache statementCache;
+
+    private long statementCacheGeneration;
+
+    private volatile long lastReleasedAt = System.currentTimeMillis();
+
+    private volatile long borrowedAt;
+    private volatile String borrowThread;
+    private volatile Thread borrower;
+    private volatile Throwable borrowStackTrace;
+    private final AtomicBoolean leakReported = new AtomicBoolean();
+
+    PooledConnection(ConnectionPool pool, Connection physical, StatementCache statementCache, long statementCacheGeneration) {
+        this.pool = pool;
+        this.physical = physical;
+        this.statementCache = statementCache;
+        this.statementCacheGeneration = statementCacheGeneration;
+    }
+
+    Connection checkout(long statementCacheGeneration, boolean captureBorrowSite) {
+        if (this.statementCacheGeneration != statementCacheGeneration) {
+            statementCache.clear();
+            this.statementCacheGeneration = statementCacheGeneration;
+        }
+        borrowedAt = System.currentTimeMillis();
+        borrowThread = Thread.currentThread().getName();
+        borrower = Thread.currentThread();
+        borrowStackTrace = captureBorrowSite ? new Throwable("Connection acquired here") : null;
+        leakReported.set(false);
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new Handle());
+    }
+
+    long getLastReleasedAt() {
+        return lastReleasedAt;
+    }
+
+    long getHeldMillis() {
+        return System.currentTimeMillis() - borrowedAt;
+    }
+
+    String getBorrowThread() {
+        return borrowThread;
+    }
+
+    Thread getBorrower() {
+        return borrower;
+    }
+
+    /**
+     * Cancels whatever the statements of the current checkout are running; called from another thread.
+     * Holds the lock reset() takes, so it never reaches a statement the next checkout is using.
+     */
+    void cancelRunning() {
+        synchronized (handedOut) {
+            for (Statement statement : handedOut) {
+                try {
+                    statement.cancel();
+                } catch (SQLException e) {
+                    //e.printStackTrace()();
+                }
+            }
+        }
+    }
+
+    Throwable getBorrowStackTrace() {
+        return borrowStackTrace;
+    }
+
+    /**
+     * The first frame outside of the data layer, i.e. the code that asked for the connection.
+     */
+    String getBorrowSite() {
+        Throwable trace = borrowStackTrace;
+        if (trace == null) return "<unknown, leak detection disabled>";
+        for (StackTraceElement frame : trace.getStackTrace()) {
+            if (!frame.getClassName().startsWith(PooledConnection.class.getPackage().getName() + "."))
+                return frame.toString();
+        }
+        return "<unknown>";
+    }
+
+    boolean isLeakReported() {
+        return leakReported.get();
+    }
+
+    boolean markLeakReported() {
+        return leakReported.compareAndSet(false, true);
+    }
+
+    boolean validate(long validationIntervalMillis, int validationTimeoutSeconds) {
+        try {
+            if (physical.isClosed()) return false;
+            if (System.currentTimeMillis() - lastReleasedAt < validationIntervalMillis) return true;
+            return physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Puts the physical connection back into a clean state; returns false when it can not be reused.
+     */
+    boolean reset() {
+        synchronized (handedOut) {
+            handedOut.clear();
+            borrower = null;
+        }
+        try {
+            statementCache.releaseAll();
+            closeOpenStatements();
+            if (physical.isClosed()) return false;
+            if (!physical.getAutoCommit()) {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+            if (physical.isReadOnly()) physical.setReadOnly(false);
+            physical.clearWarnings();
+            lastReleasedAt = System.currentTimeMillis();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void closePhysical() {
+        try {
+            statementCache.clear();
+            closeOpenStatements();
+            physical.close();
+        } catch (SQLException e) {
+            //e.printStackTrace()();
+        }
+    }
+
+    private void closeOpenStatements() {
+        for (Statement statement : openStatements) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                //e.printStackTrace()();
+            }
+        }
+        openStatements.clear();
+    }
+
+    private void track(Statement statement) throws SQLException {
+        if (openStatements.size() >= 64) {
+            Iterator<Statement> iterator = openStatements.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isClosed()) iterator.remove();
+            }
+        }
+        openStatements.add(statement);
+    }
+
+    private void handOut(Statement statement) {
+        synchronized (handedOut) {
+            handedOut.add(statement);
+        }
+    }
+
+    private class Handle implements InvocationHandler {
+
+        private boolean closed = false;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        pool.release(PooledConnection.this);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + physical + (closed ? ", returned" : "") + "]";
+                case "isWrapperFor":
+                    if (((Class<?>) args[0]).isInstance(proxy)) return true;
+                    break;
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) return proxy;
+                    break;
+            }
+
+            if (closed) throw new SQLException("Connection has already been returned to the pool");
+
+            if (method.getName().equals("prepareStatement") && args.length == 1) {
+                PreparedStatement cached = statementCache.lease(physical, (Connection) proxy, (String) args[0]);
+                if (cached != null) {
+                    handOut(cached);
+                    return cached;
+                }
+            }
+
+            Object result;
+            try {
+                result = method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof Statement) {
+                track((Statement) result);
+                handOut((Statement) result);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package corona.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out connections to a read replica while it is reachable and not lagging behind the primary
+ * by more than the configured bound. Callers fall back to the primary whenever {@link #borrow()}
+ * returns null, which it also does right away, or after replica.borrowTimeoutMillis, when all of the
+ * replica's connections are in use.
+ */
+class ReplicaRouter {
+
+    private static final String LAG_QUERY =
+            "SELECT CASE WHEN NOT pg_is_in_recovery() " +
+                "OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+                "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) " +
+                "END";
+
+    private final ConnectionPool pool;
+    private final long maxLagMillis;
+    private final long healthCheckIntervalMillis;
+
+    private final ReentrantLock checkLock = new ReentrantLock();
+    private volatile long checkedAt = 0;
+    private volatile boolean usable = false;
+    private volatile long lastLagMillis = -1;
+
+    ReplicaRouter(ConnectionPool pool, long maxLagMillis, long healthCheckIntervalMillis) {
+        this.pool = pool;
+        this.maxLagMillis = maxLagMillis;
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+    }
+
+    Connection borrow() {
+        if (!isUsable()) return null;
+        try {
+            Connection connection = pool.borrow();
+            connection.setReadOnly(true);
+            return connection;
+        } catch (SQLTimeoutException e) {
+            // every replica connection is busy, which says nothing about the replica itself
+            return null;
+        } catch (SQLException e) {
+            markDown();
+            return null;
+        }
+    }
+
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    long getLastLagMillis() {
+        return lastLagMillis;
+    }
+
+    private boolean isUsable() {
+        if (System.currentTimeMillis() - checkedAt >= healthCheckIntervalMillis && checkLock.tryLock()) {
+            // only one caller probes the replica, everybody else keeps using the last verdict
+            try {
+                if (System.currentTimeMillis() - checkedAt >= healthCheckIntervalMillis) check();
+            } finally {
+                checkLock.unlock();
+            }
+        }
+        return usable;
+    }
+
+    private void check() {
+        try (Connection connection = pool.borrow();
+             PreparedStatement statement = connection.prepareStatement(LAG_QUERY);
+             ResultSet resultSet = statement.executeQuery()) {
+            lastLagMillis = resultSet.next() ? resultSet.getLong(1) : -1;
+            usable = lastLagMillis >= 0 && lastLagMillis <= maxLagMillis;
+        } catch (SQLTimeoutException e) {
+            // every replica connection is busy, which says nothing about the lag: keep the last verdict
+        } catch (SQLException e) {
+            lastLagMillis = -1;
+            usable = false;
+        }
+        checkedAt = System.currentTimeMillis();
+    }
+
+    private void markDown() {
+        usable = false;
+        checkedAt = System.currentTimeMillis();
+    }
+}
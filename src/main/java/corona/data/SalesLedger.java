@@ -0,0 +1,322 @@
+package corona.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes vaccineSold and vaccineProduced off the vaccines row while sales.ledger is on, so concurrent
+ * sales of one vaccine no longer queue up behind its row lock.
+ *
+ * The stock of every vaccine is spread over sales.stripes rows of vaccine_stock_stripes. A sale takes
+ * its units from one stripe picked at random, and only locks all of them (to check the total and even
+ * them out) when that stripe alone cannot cover it. Cost, productivity and total_sales depend on the
+ * order of the sales, so those are not striped: every call appends an event to vaccine_events, and
+ * vaccine_fold replays events in order on top of the values in the vaccines row. That order is the
+ * order in which the events committed: ids and transaction ids are both handed out before commit, so
+ * a deferred trigger numbers each transaction's events from vaccine_events_seq at commit time, under
+ * an advisory lock per vaccine that it keeps until the commit is done. Compaction takes the same lock,
+ * so nothing can commit in front of the events it folds.
+ *
+ * vaccine_state is what getVaccineProfile, getIncomeFromVaccine, getTotalNumberOfWorkingVaccines and
+ * forEachVaccine read: the vaccines row, the stripes and the pending events from a single snapshot,
+ * with the calling transaction's own, not yet numbered, events last. Every
+ * sales.compactionIntervalMillis the events are folded into the vaccines row, one vaccine per
+ * transaction. What reads the vaccines columns directly (getMostRatedVaccines, which needs
+ * vaccines_rating_idx, and the productivity counters in lab_vaccine_stats behind isLabPopular and
+ * getPopularLabs) sees the values as of the last compaction; {@link #compact()} brings them up to date
+ * on demand.
+ */
+public class SalesLedger {
+
+    /**
+     * The ledger tables, for TRUNCATE and DROP next to the vaccines table.
+     */
+    public static final String TABLES = "vaccine_stock_stripes, vaccine_events";
+
+    private static volatile boolean enabled = DBConnector.getBooleanProperty("sales.ledger", false);
+    private static final int stripes = Math.max(1, DBConnector.getIntProperty("sales.stripes", 8));
+    private static final long compactionIntervalMillis = DBConnector.getLongProperty("sales.compactionIntervalMillis", 1000);
+
+    private static final Object compactLock = new Object();
+    private static volatile ScheduledExecutorService compactor;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Overrides sales.ledger; only while the tables are dropped, since it changes what createTables
+     * creates.
+     */
+    public static void setEnabled(boolean enabled) {
+        SalesLedger.enabled = enabled;
+    }
+
+    /**
+     * The call vaccineSold makes instead of updating the vaccines row; returns the name of a ReturnValue.
+     */
+    public static String soldCall() {
+        start();
+        return "SELECT ledger_vaccine_sold(?, ?)";
+    }
+
+    /**
+     * The call vaccineProduced makes instead of updating the vaccines row; returns the name of a ReturnValue.
+     */
+    public static String producedCall() {
+        start();
+        return "SELECT ledger_vaccine_produced(?, ?)";
+    }
+
+    /**
+     * DDL for the ledger; run after the vaccines table has been created.
+     */
+    public static String[] createStatements() {
+        if (!enabled) return new String[0];
+
+        return new String[] {
+                "CREATE TABLE vaccine_stock_stripes (" +
+                    "   vaccine_id integer NOT NULL REFERENCES vaccines(id) ON DELETE CASCADE," +
+                    "   stripe integer NOT NULL," +
+                    "   stock integer NOT NULL CHECK (stock >= 0)," +
+                    "   PRIMARY KEY (vaccine_id, stripe)" +
+                    ")",
+                "CREATE TABLE vaccine_events (" +
+                    "   id bigserial PRIMARY KEY," +
+                    "   vaccine_id integer NOT NULL REFERENCES vaccines(id) ON DELETE CASCADE," +
+                    "   sold boolean NOT NULL," +
+                    "   amount integer NOT NULL," +
+                    "   seq bigint" +
+                    ")",
+                "CREATE INDEX vaccine_events_vaccine_idx ON vaccine_events (vaccine_id, seq)",
+                "CREATE SEQUENCE vaccine_events_seq OWNED BY vaccine_events.seq",
+
+                // runs at commit, once per event; the first call numbers all of the transaction's events
+                // (the only unnumbered ones it can see), locking their vaccines in order so that two
+                // committing transactions cannot deadlock
+                "CREATE OR REPLACE FUNCTION vaccine_events_sequence() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   PERFORM pg_advisory_xact_lock('vaccine_events'::regclass::oid::integer, u.vaccine_id) " +
+                    "   FROM (SELECT DISTINCT ev.vaccine_id FROM vaccine_events ev WHERE ev.seq IS NULL ORDER BY ev.vaccine_id) u; " +
+                    "   IF NOT FOUND THEN RETURN NULL; END IF; " +
+                    "   UPDATE vaccine_events ev SET seq = n.seq " +
+                    "   FROM (" +
+                    "       SELECT o.id, nextval('vaccine_events_seq') AS seq " +
+                    "       FROM (SELECT e.id FROM vaccine_events e WHERE e.seq IS NULL ORDER BY e.id) o" +
+                    "   ) n " +
+                    "   WHERE ev.id = n.id; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                "CREATE CONSTRAINT TRIGGER vaccine_events_sequence AFTER INSERT ON vaccine_events " +
+                    "DEFERRABLE INITIALLY DEFERRED " +
+                    "FOR EACH ROW EXECUTE PROCEDURE vaccine_events_sequence()",
+
+                "CREATE OR REPLACE FUNCTION vaccines_stock_stripes() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   INSERT INTO vaccine_stock_stripes (vaccine_id, stripe, stock) " +
+                    "   SELECT NEW.id, g, NEW.stock / " + stripes + " + CASE WHEN g < NEW.stock % " + stripes + " THEN 1 ELSE 0 END " +
+                    "   FROM generate_series(0, " + (stripes - 1) + ") g; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                "CREATE TRIGGER vaccines_stock_stripes AFTER INSERT ON vaccines " +
+                    "FOR EACH ROW EXECUTE PROCEDURE vaccines_stock_stripes()",
+
+                "CREATE OR REPLACE FUNCTION ledger_vaccine_sold(vaccine integer, units integer) RETURNS text AS $$ " +
+                    "DECLARE " +
+                    "   chosen integer := floor(random() * " + stripes + ")::integer; " +
+                    "   available bigint; " +
+                    "BEGIN " +
+                    "   IF units < 0 THEN RETURN 'BAD_PARAMS'; END IF; " +
+                    "   UPDATE vaccine_stock_stripes s SET stock = s.stock - units " +
+                    "   WHERE s.vaccine_id = vaccine AND s.stripe = chosen AND s.stock >= units; " +
+                    "   IF NOT FOUND THEN " +
+                    // the stripe cannot cover the sale on its own: lock all of them, in order, and even them out
+                    "       SELECT sum(s.stock) INTO available FROM (" +
+                    "           SELECT ss.stock FROM vaccine_stock_stripes ss WHERE ss.vaccine_id = vaccine " +
+                    "           ORDER BY ss.stripe FOR UPDATE" +
+                    "       ) s; " +
+                    "       IF available IS NULL THEN RETURN 'ERROR'; END IF; " +
+                    "       IF available < units THEN RETURN 'BAD_PARAMS'; END IF; " +
+                    "       UPDATE vaccine_stock_stripes s " +
+                    "       SET stock = (available - units) / " + stripes + " " +
+                    "           + CASE WHEN s.stripe < (available - units) % " + stripes + " THEN 1 ELSE 0 END " +
+                    "       WHERE s.vaccine_id = vaccine; " +
+                    "   END IF; " +
+                    "   INSERT INTO vaccine_events (vaccine_id, sold, amount) VALUES (vaccine, true, units); " +
+                    "   RETURN 'OK'; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                "CREATE OR REPLACE FUNCTION ledger_vaccine_produced(vaccine integer, units integer) RETURNS text AS $$ " +
+                    "DECLARE " +
+                    "   chosen integer := floor(random() * " + stripes + ")::integer; " +
+                    "BEGIN " +
+                    "   IF units < 0 THEN RETURN 'BAD_PARAMS'; END IF; " +
+                    "   UPDATE vaccine_stock_stripes s SET stock = s.stock + units " +
+                    "   WHERE s.vaccine_id = vaccine AND s.stripe = chosen; " +
+                    "   IF NOT FOUND THEN RETURN 'ERROR'; END IF; " +
+                    "   INSERT INTO vaccine_events (vaccine_id, sold, amount) VALUES (vaccine, false, units); " +
+                    "   RETURN 'OK'; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+
+                // the same arithmetic as the plain UPDATEs, except that cost and total_sales saturate
+                // instead of failing an event that was already accepted
+                "CREATE OR REPLACE FUNCTION vaccine_fold(INOUT cost integer, INOUT productivity integer, " +
+                    "INOUT total_sales integer, sold_flags boolean[], amounts integer[]) AS $$ " +
+                    "BEGIN " +
+                    "   FOR i IN 1 .. coalesce(array_length(sold_flags, 1), 0) LOOP " +
+                    "       IF sold_flags[i] THEN " +
+                    "           total_sales := LEAST(total_sales::bigint + cost::bigint * amounts[i], 2147483647); " +
+                    "           cost := LEAST(cost::bigint * 2, 2147483647); " +
+                    "           productivity := LEAST(productivity + 15, 100); " +
+                    "       ELSE " +
+                    "           cost := cost / 2; " +
+                    "           productivity := GREATEST(productivity - 15, 0); " +
+                    "       END IF; " +
+                    "   END LOOP; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql IMMUTABLE",
+                // STABLE, so every statement inside reads the snapshot of the calling query
+                "CREATE OR REPLACE FUNCTION vaccine_state(vaccine integer, OUT cost integer, OUT stock integer, " +
+                    "OUT productivity integer, OUT total_sales integer) AS $$ " +
+                    "DECLARE " +
+                    "   sold_flags boolean[]; " +
+                    "   amounts integer[]; " +
+                    "BEGIN " +
+                    "   SELECT array_agg(ev.sold ORDER BY ev.seq NULLS LAST, ev.id), " +
+                    "          array_agg(ev.amount ORDER BY ev.seq NULLS LAST, ev.id) " +
+                    "   INTO sold_flags, amounts " +
+                    "   FROM vaccine_events ev WHERE ev.vaccine_id = vaccine; " +
+                    "   SELECT f.cost, s.stock, f.productivity, f.total_sales " +
+                    "   INTO cost, stock, productivity, total_sales " +
+                    "   FROM vaccines v, " +
+                    "        LATERAL vaccine_fold(v.cost, v.productivity, v.total_sales, sold_flags, amounts) f, " +
+                    "        LATERAL (SELECT sum(ss.stock)::integer AS stock FROM vaccine_stock_stripes ss " +
+                    "                 WHERE ss.vaccine_id = v.id) s " +
+                    "   WHERE v.id = vaccine; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql STABLE",
+                "CREATE OR REPLACE FUNCTION vaccine_compact(vaccine integer) RETURNS integer AS $$ " +
+                    "DECLARE " +
+                    "   base record; " +
+                    "   folded record; " +
+                    "   sold_flags boolean[]; " +
+                    "   amounts integer[]; " +
+                    "BEGIN " +
+                    // NO KEY UPDATE does not conflict with the key share locks the sales' foreign keys take
+                    "   SELECT v.cost, v.productivity, v.total_sales INTO base " +
+                    "   FROM vaccines v WHERE v.id = vaccine FOR NO KEY UPDATE; " +
+                    "   IF NOT FOUND THEN RETURN 0; END IF; " +
+                    // after the row lock: a committing transaction holds the advisory lock, but never
+                    // waits for the row; from here on nothing can commit in front of what we fold
+                    "   PERFORM pg_advisory_xact_lock('vaccine_events'::regclass::oid::integer, vaccine); " +
+                    // fold exactly the events this statement deleted
+                    "   WITH done AS (" +
+                    "       DELETE FROM vaccine_events ev WHERE ev.vaccine_id = vaccine AND ev.seq IS NOT NULL " +
+                    "       RETURNING ev.seq, ev.sold, ev.amount" +
+                    "   ) " +
+                    "   SELECT array_agg(d.sold ORDER BY d.seq), array_agg(d.amount ORDER BY d.seq) " +
+                    "   INTO sold_flags, amounts FROM done d; " +
+                    "   IF sold_flags IS NULL THEN RETURN 0; END IF; " +
+                    "   SELECT * INTO folded FROM vaccine_fold(base.cost, base.productivity, base.total_sales, sold_flags, amounts); " +
+                    "   UPDATE vaccines v " +
+                    "   SET cost = folded.cost, " +
+                    "       productivity = folded.productivity, " +
+                    "       total_sales = folded.total_sales, " +
+                    "       stock = (SELECT sum(ss.stock) FROM vaccine_stock_stripes ss WHERE ss.vaccine_id = vaccine) " +
+                    "   WHERE v.id = vaccine; " +
+                    "   RETURN array_length(sold_flags, 1); " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql"
+        };
+    }
+
+    /**
+     * DDL that removes what {@link #createStatements()} left behind once the tables are dropped.
+     */
+    public static String[] dropStatements() {
+        if (!enabled) return new String[0];
+        return new String[] {
+                "DROP FUNCTION IF EXISTS vaccines_stock_stripes()",
+                "DROP FUNCTION IF EXISTS vaccine_events_sequence()",
+                "DROP FUNCTION IF EXISTS ledger_vaccine_sold(integer, integer)",
+                "DROP FUNCTION IF EXISTS ledger_vaccine_produced(integer, integer)",
+                "DROP FUNCTION IF EXISTS vaccine_state(integer)",
+                "DROP FUNCTION IF EXISTS vaccine_compact(integer)",
+                "DROP FUNCTION IF EXISTS vaccine_fold(integer, integer, integer, boolean[], integer[])"
+        };
+    }
+
+    /**
+     * Folds every pending event into the vaccines rows; returns the number of events folded.
+     */
+    public static int compact() throws SQLException {
+        if (!enabled) return 0;
+        synchronized (compactLock) {
+            int folded = 0;
+            try (Connection connection = DBConnector.getConnection()) {
+                if (connection == null) throw new SQLException("Could not get a connection");
+
+                ArrayList<Integer> vaccines = new ArrayList<>();
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT DISTINCT ev.vaccine_id FROM vaccine_events ev");
+                     ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) vaccines.add(resultSet.getInt(1));
+                }
+
+                // one transaction per vaccine, so a compaction never holds more than one vaccines row
+                for (Integer vaccine : vaccines) {
+                    try (PreparedStatement statement = connection.prepareStatement("SELECT vaccine_compact(?)")) {
+                        statement.setInt(1, vaccine);
+                        try (ResultSet resultSet = statement.executeQuery()) {
+                            if (resultSet.next()) folded += resultSet.getInt(1);
+                        }
+                    }
+                }
+            }
+            return folded;
+        }
+    }
+
+    public static synchronized void stop() {
+        if (compactor != null) compactor.shutdownNow();
+        compactor = null;
+    }
+
+    private static void compactQuietly() {
+        try {
+            compact();
+        } catch (SQLException e) {
+            // the tables may be gone (dropTables), the next run will try again
+            //e.printStackTrace()();
+        }
+    }
+
+    /**
+     * Starts the periodic compaction, unless it is running or turned off.
+     */
+    public static void start() {
+        if (!enabled) return;
+        if (compactor == null && compactionIntervalMillis > 0) startCompactor();
+    }
+
+    private static synchronized void startCompactor() {
+        if (compactor != null) return;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "corona-sales-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(SalesLedger::compactQuietly,
+                compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        compactor = executor;
+    }
+}
@@ -0,0 +1,99 @@
+package corona.data;
+
+import javafx.util.Pair;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Column names and types of the tables and views in the public schema, read from
+ * information_schema so introspection never touches the rows themselves.
+ *
+ * The catalog is loaded on first use and cached until {@link #invalidate()} is called,
+ * which DBConnector does whenever Solution changes the schema. A load that was already
+ * running when the schema changed returns what it read, but does not cache it.
+ */
+public class SchemaCatalog {
+
+    private static final String TABLE = "BASE TABLE";
+    private static final String VIEW = "VIEW";
+
+    private static volatile Map<String, Map<String, ArrayList<Pair<String, String>>>> catalog;
+    // bumped by every invalidate(), guarded by the class lock
+    private static volatile long generation;
+
+    public static ArrayList<Pair<String, String>> getSchema(String tableName)
+    {
+        Map<String, Map<String, ArrayList<Pair<String, String>>>> current = load();
+        for (Map<String, ArrayList<Pair<String, String>>> relations : current.values()) {
+            ArrayList<Pair<String, String>> schema = relations.get(tableName);
+            if (schema != null) return new ArrayList<>(schema);
+        }
+        return new ArrayList<>();
+    }
+
+    public static ArrayList<String> getTableNames()
+    {
+        return new ArrayList<>(relations(TABLE).keySet());
+    }
+
+    public static ArrayList<String> getViewNames()
+    {
+        return new ArrayList<>(relations(VIEW).keySet());
+    }
+
+    public static synchronized void invalidate()
+    {
+        generation++;
+        catalog = null;
+    }
+
+    private static Map<String, ArrayList<Pair<String, String>>> relations(String tableType)
+    {
+        Map<String, ArrayList<Pair<String, String>>> relations = load().get(tableType);
+        return relations == null ? new LinkedHashMap<>() : relations;
+    }
+
+    private static Map<String, Map<String, ArrayList<Pair<String, String>>>> load()
+    {
+        Map<String, Map<String, ArrayList<Pair<String, String>>>> current = catalog;
+        if (current != null) return current;
+
+        long loading = generation;
+        current = new LinkedHashMap<>();
+        try (Connection connection = DBConnector.getConnection()) {
+            if (connection == null) return current;
+
+            PreparedStatement pstmt = connection.prepareStatement(
+                    "SELECT t.table_type, c.table_name, c.column_name, c.udt_name " +
+                        "FROM information_schema.columns c " +
+                        "JOIN information_schema.tables t " +
+                        "  ON t.table_schema = c.table_schema AND t.table_name = c.table_name " +
+                        "WHERE c.table_schema = 'public' " +
+                        "ORDER BY t.table_type, c.table_name, c.ordinal_position"
+            );
+            ResultSet resultSet = pstmt.executeQuery();
+            while (resultSet.next())
+            {
+                current.computeIfAbsent(resultSet.getString("table_type"), type -> new LinkedHashMap<>())
+                        .computeIfAbsent(resultSet.getString("table_name"), name -> new ArrayList<>())
+                        .add(new Pair<>(resultSet.getString("column_name"), resultSet.getString("udt_name")));
+            }
+            resultSet.close();
+            pstmt.close();
+        } catch (SQLException e) {
+            //e.printStackTrace()();
+            return current;
+        }
+
+        synchronized (SchemaCatalog.class) {
+            if (generation == loading) catalog = current;
+        }
+        return current;
+    }
+}
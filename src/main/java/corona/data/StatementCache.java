@@ -0,0 +1,208 @@
+package corona.data;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of prepared statements keyed by SQL text, owned by one {@link PooledConnection}.
+ *
+ * Keeping the same PreparedStatement object alive across borrows lets the driver switch it to a
+ * named server-side statement, so Postgres stops re-parsing and re-planning our fixed queries.
+ * Callers get a lease on the cached statement; closing the lease clears its parameters and hands it
+ * back to the cache instead of closing it.
+ */
+class StatementCache {
+
+    private static final String[] STATEMENT_SETTINGS = {
+            "setFetchSize", "setFetchDirection", "setMaxRows", "setLargeMaxRows", "setMaxFieldSize",
+            "setQueryTimeout", "setEscapeProcessing", "setPoolable", "setCursorName"
+    };
+
+    private final int capacity;
+    private final AtomicLong poolHits;
+    private final AtomicLong poolMisses;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    StatementCache(int capacity, AtomicLong poolHits, AtomicLong poolMisses) {
+        this.capacity = capacity;
+        this.poolHits = poolHits;
+        this.poolMisses = poolMisses;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns a lease on a cached statement for the given SQL, or null when the statement
+     * is already leased out (the caller should then prepare an uncached one).
+     */
+    PreparedStatement lease(Connection physical, Connection owner, String sql) throws SQLException {
+        if (capacity <= 0) return null;
+
+        Entry entry = entries.get(sql);
+        if (entry != null) {
+            if (entry.lease != null) return null;
+            hits++;
+            poolHits.incrementAndGet();
+        } else {
+            misses++;
+            poolMisses.incrementAndGet();
+            entry = new Entry(sql, physical.prepareStatement(sql));
+            entries.put(sql, entry);
+            evictOverflow();
+        }
+
+        entry.lease = new Lease(entry, owner);
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                entry.lease);
+    }
+
+    /**
+     * Takes back every statement still leased out, e.g. when the connection returns to the pool.
+     */
+    void releaseAll() {
+        List<Entry> leased = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.lease != null) leased.add(entry);
+        }
+        for (Entry entry : leased) entry.lease.release();
+    }
+
+    void clear() {
+        for (Entry entry : entries.values()) {
+            if (entry.lease != null) entry.lease.closed = true;
+            closeQuietly(entry.statement);
+        }
+        entries.clear();
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evictOverflow() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest.lease != null) continue;
+            iterator.remove();
+            closeQuietly(eldest.statement);
+        }
+    }
+
+    private void discard(Entry entry) {
+        entries.remove(entry.sql);
+        closeQuietly(entry.statement);
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            //e.printStackTrace()();
+        }
+    }
+
+    private static class Entry {
+        final String sql;
+        final PreparedStatement statement;
+        Lease lease;
+
+        Entry(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+    }
+
+    private class Lease implements InvocationHandler {
+
+        private final Entry entry;
+        private final Connection owner;
+        private boolean closed = false;
+        private boolean settingsChanged = false;
+
+        Lease(Entry entry, Connection owner) {
+            this.entry = entry;
+            this.owner = owner;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "closeOnCompletion":
+                    // the cache owns the statement's lifetime
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + entry.sql + "]";
+            }
+
+            if (closed) throw new SQLException("Statement is closed");
+            if (name.equals("getConnection")) return owner;
+
+            for (String setting : STATEMENT_SETTINGS) {
+                if (setting.equals(name)) {
+                    settingsChanged = true;
+                    break;
+                }
+            }
+
+            try {
+                return method.invoke(entry.statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        void release() {
+            if (closed) return;
+            closed = true;
+            entry.lease = null;
+
+            if (settingsChanged) {
+                discard(entry);
+                return;
+            }
+            try {
+                ResultSet resultSet = entry.statement.getResultSet();
+                if (resultSet != null) resultSet.close();
+                entry.statement.clearParameters();
+                entry.statement.clearBatch();
+            } catch (SQLException e) {
+                discard(entry);
+            }
+        }
+    }
+}
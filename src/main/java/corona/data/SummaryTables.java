@@ -0,0 +1,295 @@
+package corona.data;
+
+/**
+ * Per-lab counters that the analytic queries read instead of aggregating the join tables on every
+ * call. The counters are kept up to date by triggers inside the writing transaction, so they are
+ * never stale and need no refreshing.
+ *
+ * lab_vaccine_stats: how many vaccines each lab produces, and how many of those have a productivity
+ * below 20 (isLabPopular, getPopularLabs). Memberships update it once per statement, in lab order.
+ *
+ * lab_wage_totals: the sum of the salaries paid by each lab, next to a copy of labs.active
+ * (getTotalWages). Every lab has a row from the moment it is added. Memberships update it once per
+ * statement, in lab order.
+ *
+ * city_employment_counts and lab_same_city_counts: how many lab memberships the employees of each
+ * city hold (getMostPopularCity), and how many of a lab's employees live in the lab's city
+ * (getBestLab). Only non-zero counts are kept. They are keyed by cities, which nothing in Solution
+ * ever changes after a lab or employee was added. They are updated once per statement, in key order,
+ * so the set-based calls cannot deadlock on them.
+ */
+public class SummaryTables {
+
+    /**
+     * The summary tables, for TRUNCATE and DROP next to the tables they summarize.
+     */
+    public static final String TABLES =
+            "lab_vaccine_stats, lab_wage_totals, city_employment_counts, lab_same_city_counts";
+
+    /**
+     * DDL for the summary tables and their triggers; run after the tables have been created.
+     */
+    public static String[] createStatements() {
+        return new String[] {
+                "CREATE TABLE lab_vaccine_stats (" +
+                    "   lab_id integer PRIMARY KEY REFERENCES labs(id) ON DELETE CASCADE," +
+                    "   vaccines integer NOT NULL," +
+                    "   unproductive_vaccines integer NOT NULL" +
+                    ")",
+                "CREATE INDEX lab_vaccine_stats_popular_idx ON lab_vaccine_stats (lab_id) " +
+                    "WHERE vaccines > 0 AND unproductive_vaccines = 0",
+
+                // summed per lab and applied in lab order, so that statements changing many rows at
+                // once lock the counters in the same order and cannot deadlock
+                "CREATE OR REPLACE FUNCTION lab_vaccine_stats_apply(vaccine_ids integer[], lab_ids integer[], deltas integer[]) " +
+                    "RETURNS void AS $$ " +
+                    "BEGIN " +
+                    // the share locks make us wait for, and then see, concurrent productivity changes
+                    "   PERFORM 1 FROM vaccines v WHERE v.id = ANY (vaccine_ids) ORDER BY v.id FOR SHARE; " +
+                    "   INSERT INTO lab_vaccine_stats AS s (lab_id, vaccines, unproductive_vaccines) " +
+                    "   SELECT ch.lab_id, sum(ch.delta)::integer, " +
+                    "       sum(CASE WHEN v.productivity < 20 THEN ch.delta ELSE 0 END)::integer " +
+                    "   FROM unnest(vaccine_ids, lab_ids, deltas) AS ch(vaccine_id, lab_id, delta) " +
+                    "   LEFT JOIN vaccines v ON v.id = ch.vaccine_id " +
+                    "   GROUP BY ch.lab_id " +
+                    "   HAVING sum(ch.delta) <> 0 OR sum(CASE WHEN v.productivity < 20 THEN ch.delta ELSE 0 END) <> 0 " +
+                    "   ORDER BY ch.lab_id " +
+                    "   ON CONFLICT (lab_id) DO UPDATE " +
+                    "   SET vaccines = s.vaccines + EXCLUDED.vaccines, " +
+                    "       unproductive_vaccines = s.unproductive_vaccines + EXCLUDED.unproductive_vaccines; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                // once per statement, over its transition tables
+                "CREATE OR REPLACE FUNCTION vaccines_labs_count() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   IF TG_OP = 'INSERT' THEN " +
+                    "       PERFORM lab_vaccine_stats_apply(array_agg(n.vaccine_id), array_agg(n.lab_id), array_agg(1)) " +
+                    "       FROM new_rows n; " +
+                    "   ELSIF TG_OP = 'DELETE' THEN " +
+                    "       PERFORM lab_vaccine_stats_apply(array_agg(o.vaccine_id), array_agg(o.lab_id), array_agg(-1)) " +
+                    "       FROM old_rows o; " +
+                    "   ELSE " +
+                    "       PERFORM lab_vaccine_stats_apply(array_agg(ch.vaccine_id), array_agg(ch.lab_id), array_agg(ch.delta)) " +
+                    "       FROM (" +
+                    "           SELECT o.vaccine_id, o.lab_id, -1 AS delta FROM old_rows o " +
+                    "           UNION ALL " +
+                    "           SELECT n.vaccine_id, n.lab_id, 1 FROM new_rows n" +
+                    "       ) ch; " +
+                    "   END IF; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                "CREATE OR REPLACE FUNCTION vaccines_labs_reset() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   DELETE FROM lab_vaccine_stats; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                "CREATE OR REPLACE FUNCTION vaccines_productivity_count() RETURNS trigger AS $$ " +
+                    "DECLARE " +
+                    "   delta integer := CASE WHEN NEW.productivity < 20 THEN 1 ELSE -1 END; " +
+                    "BEGIN " +
+                    // lock in lab order, so concurrent changes to vaccines sharing labs cannot deadlock
+                    "   PERFORM 1 FROM lab_vaccine_stats s " +
+                    "   WHERE s.lab_id IN (SELECT vl.lab_id FROM vaccines_labs vl WHERE vl.vaccine_id = NEW.id) " +
+                    "   ORDER BY s.lab_id FOR UPDATE; " +
+                    "   UPDATE lab_vaccine_stats s " +
+                    "   SET unproductive_vaccines = s.unproductive_vaccines + delta " +
+                    "   FROM vaccines_labs vl " +
+                    "   WHERE vl.vaccine_id = NEW.id AND s.lab_id = vl.lab_id; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+
+                "CREATE TRIGGER vaccines_labs_count_insert " +
+                    "AFTER INSERT ON vaccines_labs REFERENCING NEW TABLE AS new_rows " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE vaccines_labs_count()",
+                "CREATE TRIGGER vaccines_labs_count_update " +
+                    "AFTER UPDATE ON vaccines_labs REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE vaccines_labs_count()",
+                "CREATE TRIGGER vaccines_labs_count_delete " +
+                    "AFTER DELETE ON vaccines_labs REFERENCING OLD TABLE AS old_rows " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE vaccines_labs_count()",
+                "CREATE TRIGGER vaccines_labs_reset " +
+                    "AFTER TRUNCATE ON vaccines_labs " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE vaccines_labs_reset()",
+                "CREATE TRIGGER vaccines_productivity_count " +
+                    "AFTER UPDATE OF productivity ON vaccines " +
+                    "FOR EACH ROW WHEN ((OLD.productivity < 20) IS DISTINCT FROM (NEW.productivity < 20)) " +
+                    "EXECUTE PROCEDURE vaccines_productivity_count()",
+
+                "CREATE TABLE lab_wage_totals (" +
+                    "   lab_id integer PRIMARY KEY REFERENCES labs(id) ON DELETE CASCADE," +
+                    "   total_wages bigint NOT NULL DEFAULT 0," +
+                    "   active boolean NOT NULL" +
+                    ")",
+
+                "CREATE OR REPLACE FUNCTION labs_wage_totals() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   IF TG_OP = 'INSERT' THEN " +
+                    "       INSERT INTO lab_wage_totals (lab_id, active) VALUES (NEW.id, NEW.active); " +
+                    "   ELSE " +
+                    "       UPDATE lab_wage_totals SET active = NEW.active WHERE lab_id = NEW.id; " +
+                    "   END IF; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                // summed per lab and applied in lab order, like lab_vaccine_stats_apply
+                "CREATE OR REPLACE FUNCTION lab_wage_totals_apply(lab_ids integer[], deltas bigint[]) " +
+                    "RETURNS void AS $$ " +
+                    "BEGIN " +
+                    "   PERFORM 1 FROM lab_wage_totals w WHERE w.lab_id = ANY (lab_ids) ORDER BY w.lab_id FOR UPDATE; " +
+                    "   UPDATE lab_wage_totals w SET total_wages = w.total_wages + ch.delta " +
+                    "   FROM (" +
+                    "       SELECT d.lab_id, sum(d.delta)::bigint AS delta " +
+                    "       FROM unnest(lab_ids, deltas) AS d(lab_id, delta) " +
+                    "       GROUP BY d.lab_id HAVING sum(d.delta) <> 0" +
+                    "   ) ch " +
+                    "   WHERE w.lab_id = ch.lab_id; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                // once per statement, over its transition tables
+                "CREATE OR REPLACE FUNCTION employees_labs_wage_totals() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   IF TG_OP = 'INSERT' THEN " +
+                    "       PERFORM lab_wage_totals_apply(array_agg(n.lab_id), array_agg(n.salary::bigint)) " +
+                    "       FROM new_rows n; " +
+                    "   ELSIF TG_OP = 'DELETE' THEN " +
+                    "       PERFORM lab_wage_totals_apply(array_agg(o.lab_id), array_agg(-o.salary::bigint)) " +
+                    "       FROM old_rows o; " +
+                    "   ELSE " +
+                    "       PERFORM lab_wage_totals_apply(array_agg(ch.lab_id), array_agg(ch.delta)) " +
+                    "       FROM (" +
+                    "           SELECT o.lab_id, -o.salary::bigint AS delta FROM old_rows o " +
+                    "           UNION ALL " +
+                    "           SELECT n.lab_id, n.salary::bigint FROM new_rows n" +
+                    "       ) ch; " +
+                    "   END IF; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                "CREATE OR REPLACE FUNCTION employees_labs_wage_reset() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   UPDATE lab_wage_totals SET total_wages = 0 WHERE total_wages <> 0; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+
+                "CREATE TRIGGER labs_wage_totals " +
+                    "AFTER INSERT OR UPDATE OF active ON labs " +
+                    "FOR EACH ROW EXECUTE PROCEDURE labs_wage_totals()",
+                "CREATE TRIGGER employees_labs_wage_totals_insert " +
+                    "AFTER INSERT ON employees_labs REFERENCING NEW TABLE AS new_rows " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE employees_labs_wage_totals()",
+                "CREATE TRIGGER employees_labs_wage_totals_update " +
+                    "AFTER UPDATE ON employees_labs REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE employees_labs_wage_totals()",
+                "CREATE TRIGGER employees_labs_wage_totals_delete " +
+                    "AFTER DELETE ON employees_labs REFERENCING OLD TABLE AS old_rows " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE employees_labs_wage_totals()",
+                "CREATE TRIGGER employees_labs_wage_reset " +
+                    "AFTER TRUNCATE ON employees_labs " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE employees_labs_wage_reset()",
+
+                "CREATE TABLE city_employment_counts (" +
+                    "   city text PRIMARY KEY," +
+                    "   employments integer NOT NULL" +
+                    ")",
+                "CREATE INDEX city_employment_counts_top_idx ON city_employment_counts (employments DESC, city DESC)",
+                "CREATE TABLE lab_same_city_counts (" +
+                    "   lab_id integer PRIMARY KEY REFERENCES labs(id) ON DELETE CASCADE," +
+                    "   employees integer NOT NULL" +
+                    ")",
+                "CREATE INDEX lab_same_city_counts_top_idx ON lab_same_city_counts (employees DESC, lab_id)",
+
+                // summed per counter and applied in key order, so that statements changing many
+                // memberships at once lock the counters in the same order and cannot deadlock
+                "CREATE OR REPLACE FUNCTION city_counts_apply(employee_ids integer[], lab_ids integer[], deltas integer[]) " +
+                    "RETURNS void AS $$ " +
+                    "BEGIN " +
+                    "   INSERT INTO city_employment_counts AS c (city, employments) " +
+                    "   SELECT e.city, sum(ch.delta)::integer " +
+                    "   FROM unnest(employee_ids, deltas) AS ch(employee_id, delta) " +
+                    "   JOIN employees e ON e.id = ch.employee_id " +
+                    "   GROUP BY e.city HAVING sum(ch.delta) <> 0 " +
+                    "   ORDER BY e.city " +
+                    "   ON CONFLICT (city) DO UPDATE SET employments = c.employments + EXCLUDED.employments; " +
+                    "   DELETE FROM city_employment_counts c " +
+                    "   WHERE c.employments = 0 " +
+                    "   AND c.city IN (SELECT e.city FROM employees e WHERE e.id = ANY (employee_ids)); " +
+
+                    "   INSERT INTO lab_same_city_counts AS s (lab_id, employees) " +
+                    "   SELECT l.id, sum(ch.delta)::integer " +
+                    "   FROM unnest(employee_ids, lab_ids, deltas) AS ch(employee_id, lab_id, delta) " +
+                    "   JOIN employees e ON e.id = ch.employee_id " +
+                    "   JOIN labs l ON l.id = ch.lab_id AND l.city = e.city " +
+                    "   GROUP BY l.id HAVING sum(ch.delta) <> 0 " +
+                    "   ORDER BY l.id " +
+                    "   ON CONFLICT (lab_id) DO UPDATE SET employees = s.employees + EXCLUDED.employees; " +
+                    "   DELETE FROM lab_same_city_counts s " +
+                    "   WHERE s.employees = 0 AND s.lab_id = ANY (lab_ids); " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                // once per statement, over its transition tables
+                "CREATE OR REPLACE FUNCTION employees_labs_city_counts() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   IF TG_OP = 'INSERT' THEN " +
+                    "       PERFORM city_counts_apply(array_agg(n.employee_id), array_agg(n.lab_id), array_agg(1)) " +
+                    "       FROM new_rows n; " +
+                    "   ELSIF TG_OP = 'DELETE' THEN " +
+                    "       PERFORM city_counts_apply(array_agg(o.employee_id), array_agg(o.lab_id), array_agg(-1)) " +
+                    "       FROM old_rows o; " +
+                    "   ELSE " +
+                    "       PERFORM city_counts_apply(array_agg(ch.employee_id), array_agg(ch.lab_id), array_agg(ch.delta)) " +
+                    "       FROM (" +
+                    "           SELECT o.employee_id, o.lab_id, -1 AS delta FROM old_rows o " +
+                    "           UNION ALL " +
+                    "           SELECT n.employee_id, n.lab_id, 1 FROM new_rows n" +
+                    "       ) ch; " +
+                    "   END IF; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                "CREATE OR REPLACE FUNCTION employees_labs_city_reset() RETURNS trigger AS $$ " +
+                    "BEGIN " +
+                    "   DELETE FROM city_employment_counts; " +
+                    "   DELETE FROM lab_same_city_counts; " +
+                    "   RETURN NULL; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+
+                // a trigger with transition tables takes one event, and no column list
+                "CREATE TRIGGER employees_labs_city_counts_insert " +
+                    "AFTER INSERT ON employees_labs REFERENCING NEW TABLE AS new_rows " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE employees_labs_city_counts()",
+                "CREATE TRIGGER employees_labs_city_counts_update " +
+                    "AFTER UPDATE ON employees_labs REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE employees_labs_city_counts()",
+                "CREATE TRIGGER employees_labs_city_counts_delete " +
+                    "AFTER DELETE ON employees_labs REFERENCING OLD TABLE AS old_rows " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE employees_labs_city_counts()",
+                "CREATE TRIGGER employees_labs_city_reset " +
+                    "AFTER TRUNCATE ON employees_labs " +
+                    "FOR EACH STATEMENT EXECUTE PROCEDURE employees_labs_city_reset()"
+        };
+    }
+
+    /**
+     * DDL that removes the trigger functions once the tables are dropped.
+     */
+    public static String[] dropStatements() {
+        return new String[] {
+                "DROP FUNCTION IF EXISTS vaccines_labs_count()",
+                "DROP FUNCTION IF EXISTS vaccines_labs_reset()",
+                "DROP FUNCTION IF EXISTS vaccines_productivity_count()",
+                "DROP FUNCTION IF EXISTS lab_vaccine_stats_apply(integer[], integer[], integer[])",
+                "DROP FUNCTION IF EXISTS labs_wage_totals()",
+                "DROP FUNCTION IF EXISTS employees_labs_wage_totals()",
+                "DROP FUNCTION IF EXISTS employees_labs_wage_reset()",
+                "DROP FUNCTION IF EXISTS lab_wage_totals_apply(integer[], bigint[])",
+                "DROP FUNCTION IF EXISTS city_counts_apply(integer[], integer[], integer[])",
+                "DROP FUNCTION IF EXISTS employees_labs_city_counts()",
+                "DROP FUNCTION IF EXISTS employees_labs_city_reset()"
+        };
+    }
+}
@@ -0,0 +1,211 @@
+package corona.data;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * One transaction shared by every Solution call made on the current thread while it runs.
+ *
+ * While a unit of work is active, DBConnector hands out its connection (for reads as well, so calls see
+ * what earlier calls wrote) wrapped so that every handle is one call: it starts at a savepoint, and
+ * closing it rolls back to that savepoint if the call left the transaction failed, and releases it
+ * otherwise. A failed call therefore undoes only itself and reports the same ReturnValue as it would on
+ * its own, and the calls after it carry on. Commits and autocommit changes made by the calls themselves
+ * are ignored, and their rollback() goes back to their own savepoint; the unit of work commits once, at
+ * the end.
+ *
+ * Local state that is shared with other threads (the entity caches, the close employees index) must not
+ * see uncommitted rows: it is bypassed inside a unit of work and brought up to date once it is over,
+ * through {@link #afterCommit} and {@link #afterCompletion}.
+ */
+public class UnitOfWork {
+
+    private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+
+    private final Connection connection;
+    private final ArrayList<Runnable> afterCommit = new ArrayList<>();
+    private final ArrayList<Runnable> afterCompletion = new ArrayList<>();
+    private boolean rollbackOnly;
+
+    private UnitOfWork(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Makes the unit of work roll back instead of committing when it ends.
+     */
+    public void setRollbackOnly() {
+        rollbackOnly = true;
+    }
+
+    public boolean isRollbackOnly() {
+        return rollbackOnly;
+    }
+
+    public static boolean isActive() {
+        return current.get() != null;
+    }
+
+    /**
+     * Runs work in a new unit of work, or in the one already active on this thread; returns true if it
+     * committed (or, when joining, if it is still going to). The transaction is rolled back if work
+     * throws, marks it rollback-only or the commit fails.
+     */
+    public static boolean run(Consumer<UnitOfWork> work) throws SQLException {
+        UnitOfWork outer = current.get();
+        if (outer != null) {
+            try {
+                work.accept(outer);
+            } catch (RuntimeException e) {
+                outer.rollbackOnly = true;
+                throw e;
+            }
+            return !outer.rollbackOnly;
+        }
+
+        UnitOfWork unit = null;
+        boolean committed = false;
+        try (Connection connection = DBConnector.getConnection()) {
+            if (connection == null) throw new SQLException("Could not get a connection");
+            connection.setAutoCommit(false);
+
+            unit = new UnitOfWork(connection);
+            current.set(unit);
+            try {
+                work.accept(unit);
+                if (!unit.rollbackOnly) {
+                    connection.commit();
+                    committed = true;
+                }
+            } finally {
+                current.remove();
+            }
+            // closing the connection rolls back whatever was not committed
+        } finally {
+            // after current.remove(), so what the callbacks do is not deferred again
+            if (unit != null) unit.complete(committed);
+        }
+        return committed;
+    }
+
+    /**
+     * Runs action once the active unit of work has committed, and never if it rolls back; returns false
+     * when no unit of work is active, in which case the caller should run it right away.
+     */
+    public static boolean afterCommit(Runnable action) {
+        UnitOfWork unit = current.get();
+        if (unit == null) return false;
+        unit.afterCommit.add(action);
+        return true;
+    }
+
+    /**
+     * Runs action once the active unit of work has ended either way; returns false when no unit of work
+     * is active.
+     */
+    public static boolean afterCompletion(Runnable action) {
+        UnitOfWork unit = current.get();
+        if (unit == null) return false;
+        unit.afterCompletion.add(action);
+        return true;
+    }
+
+    /**
+     * The active unit of work's connection, as a handle for one call, or null when none is active.
+     */
+    static Connection enlist() throws SQLException {
+        UnitOfWork unit = current.get();
+        if (unit == null) return null;
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                unit.new Call(unit.connection.setSavepoint()));
+    }
+
+    private void complete(boolean committed) {
+        if (committed) afterCommit.forEach(UnitOfWork::runQuietly);
+        afterCompletion.forEach(UnitOfWork::runQuietly);
+    }
+
+    private static void runQuietly(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            System.out.println("Unit of work callback failed! " + e);
+        }
+    }
+
+    private class Call implements InvocationHandler {
+
+        private final Savepoint savepoint;
+        private boolean closed = false;
+
+        private Call(Savepoint savepoint) {
+            this.savepoint = savepoint;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        end();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "UnitOfWork[" + connection + (closed ? ", ended" : "") + "]";
+            }
+
+            if (closed) throw new SQLException("The call has already ended");
+
+            switch (method.getName()) {
+                case "commit":
+                case "setAutoCommit":
+                case "setReadOnly":
+                    // the unit of work decides these
+                    return null;
+                case "rollback":
+                    if (args == null || args.length == 0) {
+                        connection.rollback(savepoint);
+                        return null;
+                    }
+                    break;
+            }
+
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void end() throws SQLException {
+            try {
+                connection.releaseSavepoint(savepoint);
+            } catch (SQLException releaseFailed) {
+                // the call left the transaction failed: undo the call, and only the call
+                try {
+                    connection.rollback(savepoint);
+                    connection.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                    rollbackOnly = true;
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package corona.data;
+
+/**
+ * Server-side vaccine_sold and vaccine_produced: the sale or production and the vaccine's values after
+ * it, in one round trip. Both return (status, new_cost, new_stock, new_productivity, new_total_sales),
+ * status being the name of a ReturnValue; the values are only set when it is OK. Check violations are
+ * raised as they are by the plain UPDATEs.
+ *
+ * With the {@link SalesLedger} on they go through the ledger and return the merged vaccine_state.
+ */
+public class VaccineFunctions {
+
+    /**
+     * DDL for the functions; run after the vaccines table (and the sales ledger) have been created.
+     */
+    public static String[] createStatements() {
+        String returns = "OUT status text, OUT new_cost integer, OUT new_stock integer, " +
+                "OUT new_productivity integer, OUT new_total_sales integer";
+
+        if (SalesLedger.isEnabled()) {
+            return new String[] {
+                    "CREATE OR REPLACE FUNCTION vaccine_sold(vaccine integer, units integer, " + returns + ") AS $$ " +
+                        "BEGIN " +
+                        "   status := ledger_vaccine_sold(vaccine, units); " +
+                        "   IF status = 'OK' THEN " +
+                        "       SELECT s.cost, s.stock, s.productivity, s.total_sales " +
+                        "       INTO new_cost, new_stock, new_productivity, new_total_sales " +
+                        "       FROM vaccine_state(vaccine) s; " +
+                        "   END IF; " +
+                        "END " +
+                        "$$ LANGUAGE plpgsql",
+                    "CREATE OR REPLACE FUNCTION vaccine_produced(vaccine integer, units integer, " + returns + ") AS $$ " +
+                        "BEGIN " +
+                        "   status := ledger_vaccine_produced(vaccine, units); " +
+                        "   IF status = 'OK' THEN " +
+                        "       SELECT s.cost, s.stock, s.productivity, s.total_sales " +
+                        "       INTO new_cost, new_stock, new_productivity, new_total_sales " +
+                        "       FROM vaccine_state(vaccine) s; " +
+                        "   END IF; " +
+                        "END " +
+                        "$$ LANGUAGE plpgsql"
+            };
+        }
+
+        return new String[] {
+                "CREATE OR REPLACE FUNCTION vaccine_sold(vaccine integer, units integer, " + returns + ") AS $$ " +
+                    "BEGIN " +
+                    "   UPDATE vaccines v " +
+                    "   SET stock = v.stock - units, " +
+                    "       cost = v.cost * 2, " +
+                    "       productivity = LEAST(v.productivity + 15, 100), " +
+                    "       total_sales = v.total_sales + (v.cost * units) " +
+                    "   WHERE v.id = vaccine " +
+                    "   RETURNING v.cost, v.stock, v.productivity, v.total_sales " +
+                    "   INTO new_cost, new_stock, new_productivity, new_total_sales; " +
+                    "   status := CASE WHEN FOUND THEN 'OK' ELSE 'ERROR' END; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql",
+                "CREATE OR REPLACE FUNCTION vaccine_produced(vaccine integer, units integer, " + returns + ") AS $$ " +
+                    "BEGIN " +
+                    "   IF units < 0 THEN " +
+                    "       status := 'BAD_PARAMS'; " +
+                    "       RETURN; " +
+                    "   END IF; " +
+                    "   UPDATE vaccines v " +
+                    "   SET stock = v.stock + units, " +
+                    "       cost = v.cost / 2, " +
+                    "       productivity = GREATEST(v.productivity - 15, 0) " +
+                    "   WHERE v.id = vaccine " +
+                    "   RETURNING v.cost, v.stock, v.productivity, v.total_sales " +
+                    "   INTO new_cost, new_stock, new_productivity, new_total_sales; " +
+                    "   status := CASE WHEN FOUND THEN 'OK' ELSE 'ERROR' END; " +
+                    "END " +
+                    "$$ LANGUAGE plpgsql"
+        };
+    }
+
+    /**
+     * DDL that removes what {@link #createStatements()} left behind once the tables are dropped.
+     */
+    public static String[] dropStatements() {
+        return new String[] {
+                "DROP FUNCTION IF EXISTS vaccine_sold(integer, integer)",
+                "DROP FUNCTION IF EXISTS vaccine_produced(integer, integer)"
+        };
+    }
+}
@@ -0,0 +1,417 @@
+package corona.data;
+
+import corona.business.ReturnValue;
+import corona.business.VaccineState;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static corona.business.ReturnValue.*;
+
+/**
+ * Buffers vaccineSold and vaccineProduced per vaccine while sales.writeBehind is on, and writes each
+ * vaccine's buffered events as one UPDATE every sales.writeBehindIntervalMillis.
+ *
+ * The first event for a vaccine reads its row. Every event is then checked and applied to that
+ * in-memory copy with the arithmetic of the plain UPDATEs, so a sale that would take the stock (or
+ * total_sales) below zero gets BAD_PARAMS and an overflow gets ERROR, right away, as before. The flush
+ * locks the row, replays the events on it in order and writes the result. An event the row no longer
+ * allows by then (because something outside this buffer changed it) is dropped and counted in
+ * {@link WriteBehindMetrics#getEventsRejectedOnFlush()}; with every write to a vaccine going through
+ * one buffer, that does not happen.
+ *
+ * At most sales.writeBehindMaxPending events wait at a time; past that, the writer flushes first, and
+ * gets ERROR if that did not make room (because the rows are being written by another thread, or could
+ * not be written).
+ * Pending events are flushed by {@link #stop()} and at JVM shutdown. The buffer is not used together
+ * with the {@link SalesLedger}, which already keeps sales off the vaccines row.
+ */
+public class VaccineWriteBehind {
+
+    private static volatile boolean enabled = DBConnector.getBooleanProperty("sales.writeBehind", false);
+    private static final long flushIntervalMillis = DBConnector.getLongProperty("sales.writeBehindIntervalMillis", 100);
+    private static final int maxPendingEvents = DBConnector.getIntProperty("sales.writeBehindMaxPending", 10000);
+
+    private static final Map<Integer, Pending> buffers = new ConcurrentHashMap<>();
+    private static final AtomicInteger pendingEvents = new AtomicInteger();
+    private static final AtomicLong eventsBuffered = new AtomicLong();
+    private static final AtomicLong eventsFlushed = new AtomicLong();
+    private static final AtomicLong eventsRejectedOnFlush = new AtomicLong();
+    private static final AtomicLong flushedUpdates = new AtomicLong();
+    private static final AtomicLong totalFlushLatencyNanos = new AtomicLong();
+    private static final AtomicLong maxFlushLatencyNanos = new AtomicLong();
+    private static final Object flushLock = new Object();
+    private static volatile ScheduledExecutorService flusher;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(VaccineWriteBehind::flush, "corona-write-behind-shutdown"));
+    }
+
+    /**
+     * The columns of one vaccines row, and what vaccineSold and vaccineProduced do to them.
+     */
+    private static class RowState {
+        private long cost;
+        private long stock;
+        private long productivity;
+        private long totalSales;
+
+        private ReturnValue apply(boolean sold, int amount) {
+            long newCost, newStock, newProductivity, newTotalSales;
+            if (sold) {
+                long income = cost * amount;
+                newStock = stock - amount;
+                newCost = cost * 2;
+                newProductivity = Math.min(productivity + 15, 100);
+                newTotalSales = totalSales + income;
+                if (!fits(income) || !fits(productivity + 15)) return ERROR;
+            } else {
+                newStock = stock + amount;
+                newCost = cost / 2;
+                newProductivity = Math.max(productivity - 15, 0);
+                newTotalSales = totalSales;
+            }
+            // the order Postgres reports them in: arithmetic errors first, then the check constraints
+            if (!fits(newStock) || !fits(newCost) || !fits(newTotalSales)) return ERROR;
+            if (newStock < 0 || newTotalSales < 0) return BAD_PARAMS;
+
+            cost = newCost;
+            stock = newStock;
+            productivity = newProductivity;
+            totalSales = newTotalSales;
+            return OK;
+        }
+
+        private static boolean fits(long value) {
+            return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+        }
+    }
+
+    private static class Event {
+        private final boolean sold;
+        private final int amount;
+
+        private Event(boolean sold, int amount) {
+            this.sold = sold;
+            this.amount = amount;
+        }
+    }
+
+    private static class Pending {
+        private RowState projected;
+        private ArrayList<Event> events = new ArrayList<>();
+        private long oldestNanos;
+        private boolean flushing;
+        private boolean retired;
+    }
+
+    public static boolean isEnabled() {
+        return enabled && !SalesLedger.isEnabled();
+    }
+
+    /**
+     * Overrides sales.writeBehind; turning it off writes what is still buffered.
+     */
+    public static void setEnabled(boolean enabled) {
+        VaccineWriteBehind.enabled = enabled;
+        if (!enabled) flush();
+    }
+
+    public static ReturnValue sold(int vaccineId, int amount) {
+        return buffer(vaccineId, true, amount).getReturnValue();
+    }
+
+    public static ReturnValue produced(int vaccineId, int amount) {
+        return buffer(vaccineId, false, amount).getReturnValue();
+    }
+
+    /**
+     * Like {@link #sold(int, int)}, with the vaccine's projected values right after this sale.
+     */
+    public static VaccineState soldWithState(int vaccineId, int amount) {
+        return buffer(vaccineId, true, amount);
+    }
+
+    /**
+     * Like {@link #produced(int, int)}, with the vaccine's projected values right after this production.
+     */
+    public static VaccineState producedWithState(int vaccineId, int amount) {
+        return buffer(vaccineId, false, amount);
+    }
+
+    /**
+     * The vaccine's cost, stock and productivity with its buffered events applied, as {cost, stock,
+     * productivity, total_sales}, or null when nothing is buffered for it.
+     */
+    public static int[] projected(int vaccineId) {
+        Pending entry = buffers.get(vaccineId);
+        if (entry == null) return null;
+        synchronized (entry) {
+            if (entry.retired || entry.projected == null || (entry.events.isEmpty() && !entry.flushing)) return null;
+            RowState state = entry.projected;
+            return new int[] { (int) state.cost, (int) state.stock, (int) state.productivity, (int) state.totalSales };
+        }
+    }
+
+    /**
+     * Writes every buffered event before returning.
+     */
+    public static void flush() {
+        synchronized (flushLock) {
+            for (Map.Entry<Integer, Pending> entry : buffers.entrySet()) flush(entry.getKey(), entry.getValue(), false);
+        }
+    }
+
+    /**
+     * Writes what is buffered for one vaccine before returning, on a connection of its own even inside a
+     * unit of work, so that a direct write made there lands after the buffered events. Does not wait for
+     * the row: if it is locked (by that unit of work, say), the events stay buffered for the next flush.
+     */
+    public static void flush(int vaccineId) {
+        Pending entry = buffers.get(vaccineId);
+        if (entry != null) flush(vaccineId, entry, true);
+    }
+
+    /**
+     * Drops what is buffered for one vaccine, or for all of them when vaccineId is null; for when the rows
+     * are gone anyway (deleteVaccine, clearTables, dropTables).
+     */
+    public static void discard(Integer vaccineId) {
+        for (Map.Entry<Integer, Pending> entry : buffers.entrySet()) {
+            if (vaccineId != null && !vaccineId.equals(entry.getKey())) continue;
+            synchronized (entry.getValue()) {
+                pendingEvents.addAndGet(-entry.getValue().events.size());
+                entry.getValue().events.clear();
+                retire(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public static WriteBehindMetrics getMetrics() {
+        return new WriteBehindMetrics(pendingEvents.get(), buffers.size(), eventsBuffered.get(),
+                eventsFlushed.get(), eventsRejectedOnFlush.get(), flushedUpdates.get(), totalFlushLatencyNanos.get(),
+                maxFlushLatencyNanos.get());
+    }
+
+    /**
+     * Stops the periodic flush, after writing what is still buffered.
+     */
+    public static synchronized void stop() {
+        if (flusher != null) flusher.shutdownNow();
+        flusher = null;
+        flush();
+    }
+
+    private static VaccineState buffer(int vaccineId, boolean sold, int amount) {
+        start();
+        // the slot is taken before the event is accepted, so that concurrent writers cannot overshoot
+        // the limit together
+        if (!reserve()) {
+            flush();
+            if (!reserve()) return new VaccineState(ERROR);
+        }
+
+        VaccineState state;
+        while (true) {
+            Pending entry = buffers.computeIfAbsent(vaccineId, id -> new Pending());
+            synchronized (entry) {
+                // flushed and dropped while we were looking it up
+                if (entry.retired) continue;
+
+                if (entry.projected == null) {
+                    try {
+                        entry.projected = load(vaccineId);
+                    } catch (SQLException e) {
+                        //e.printStackTrace()();
+                    }
+                    if (entry.projected == null) {
+                        // no such vaccine: the plain UPDATE would not have found a row either
+                        retire(vaccineId, entry);
+                        pendingEvents.decrementAndGet();
+                        return new VaccineState(ERROR);
+                    }
+                }
+
+                ReturnValue result = entry.projected.apply(sold, amount);
+                if (result != OK) {
+                    pendingEvents.decrementAndGet();
+                    return new VaccineState(result);
+                }
+
+                if (entry.events.isEmpty()) entry.oldestNanos = System.nanoTime();
+                entry.events.add(new Event(sold, amount));
+
+                // while we hold the entry, so that no other thread's event is in it
+                state = new VaccineState(OK);
+                state.setCost((int) entry.projected.cost);
+                state.setUnits((int) entry.projected.stock);
+                state.setProductivity((int) entry.projected.productivity);
+                state.setIncome((int) entry.projected.totalSales);
+            }
+            eventsBuffered.incrementAndGet();
+            return state;
+        }
+    }
+
+    private static boolean reserve() {
+        while (true) {
+            int pending = pendingEvents.get();
+            if (pending >= maxPendingEvents) return false;
+            if (pendingEvents.compareAndSet(pending, pending + 1)) return true;
+        }
+    }
+
+    private static void flush(int vaccineId, Pending entry, boolean noWait) {
+        ArrayList<Event> events;
+        long oldestNanos;
+        synchronized (entry) {
+            // another thread is writing it already
+            if (entry.retired || entry.flushing) return;
+            if (entry.events.isEmpty()) {
+                retire(vaccineId, entry);
+                return;
+            }
+            events = entry.events;
+            oldestNanos = entry.oldestNanos;
+            entry.events = new ArrayList<>();
+            entry.flushing = true;
+        }
+
+        RowState written;
+        try {
+            written = write(vaccineId, events, noWait);
+        } catch (SQLException e) {
+            //e.printStackTrace()();
+            // keep them, in front of whatever came in meanwhile, for the next flush
+            synchronized (entry) {
+                events.addAll(entry.events);
+                entry.events = events;
+                entry.oldestNanos = oldestNanos;
+                entry.flushing = false;
+            }
+            return;
+        }
+
+        pendingEvents.addAndGet(-events.size());
+        eventsFlushed.addAndGet(events.size());
+        long latency = System.nanoTime() - oldestNanos;
+        flushedUpdates.incrementAndGet();
+        totalFlushLatencyNanos.addAndGet(latency);
+        maxFlushLatencyNanos.accumulateAndGet(latency, Math::max);
+        EntityCache.invalidate("vaccines", vaccineId);
+
+        synchronized (entry) {
+            entry.flushing = false;
+            if (written == null) {
+                // the vaccine is gone, and so is everything buffered for it
+                eventsRejectedOnFlush.addAndGet(entry.events.size());
+                discard(vaccineId);
+                return;
+            }
+            // start over from the row as written, plus what was buffered while writing it
+            for (Event event : entry.events) written.apply(event.sold, event.amount);
+            entry.projected = written;
+            if (entry.events.isEmpty()) retire(vaccineId, entry);
+        }
+    }
+
+    /**
+     * Replays the events on the locked row and writes it back; returns the row as written, or null
+     * when the vaccine no longer exists.
+     */
+    private static RowState write(int vaccineId, ArrayList<Event> events, boolean noWait) throws SQLException {
+        try (Connection connection = DBConnector.getConnectionOutsideUnitOfWork()) {
+            if (connection == null) throw new SQLException("Could not get a connection");
+            connection.setAutoCommit(false);
+
+            RowState state = select(connection, vaccineId, noWait ? " FOR NO KEY UPDATE NOWAIT" : " FOR NO KEY UPDATE");
+            if (state == null) {
+                eventsRejectedOnFlush.addAndGet(events.size());
+                return null;
+            }
+
+            for (Event event : events) {
+                if (state.apply(event.sold, event.amount) != OK) eventsRejectedOnFlush.incrementAndGet();
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE vaccines " +
+                        "SET cost = ?, stock = ?, productivity = ?, total_sales = ? " +
+                        "WHERE id = ?")) {
+                statement.setInt(1, (int) state.cost);
+                statement.setInt(2, (int) state.stock);
+                statement.setInt(3, (int) state.productivity);
+                statement.setInt(4, (int) state.totalSales);
+                statement.setInt(5, vaccineId);
+                statement.executeUpdate();
+            }
+            connection.commit();
+            return state;
+        }
+    }
+
+    private static RowState load(int vaccineId) throws SQLException {
+        try (Connection connection = DBConnector.getConnection()) {
+            if (connection == null) throw new SQLException("Could not get a connection");
+            return select(connection, vaccineId, "");
+        }
+    }
+
+    private static RowState select(Connection connection, int vaccineId, String lock) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT v.cost, v.stock, v.productivity, v.total_sales " +
+                    "FROM vaccines v " +
+                    "WHERE v.id = ?" + lock)) {
+            statement.setInt(1, vaccineId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) return null;
+                RowState state = new RowState();
+                state.cost = resultSet.getInt(1);
+                state.stock = resultSet.getInt(2);
+                state.productivity = resultSet.getInt(3);
+                state.totalSales = resultSet.getInt(4);
+                return state;
+            }
+        }
+    }
+
+    private static void retire(int vaccineId, Pending entry) {
+        entry.retired = true;
+        buffers.remove(vaccineId, entry);
+    }
+
+    private static void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // a failed flush would cancel the schedule
+            System.out.println("Write-behind flush failed! " + e);
+        }
+    }
+
+    private static void start() {
+        if (flusher == null) startFlusher();
+    }
+
+    private static synchronized void startFlusher() {
+        if (flusher != null) return;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "corona-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(VaccineWriteBehind::flushQuietly,
+                flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        flusher = executor;
+    }
+}
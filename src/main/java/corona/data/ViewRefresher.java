@@ -0,0 +1,150 @@
+package corona.data;
+
+import corona.business.Freshness;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the materialized copy of employees_labs_view (employees_labs_mview) close to the tables while
+ * views.materialized is on. Only getCloseEmployees reads a snapshot; the other analytic queries read
+ * trigger-maintained summary tables, which are always current, so nothing else is materialized.
+ *
+ * Snapshots are refreshed with REFRESH MATERIALIZED VIEW CONCURRENTLY, so readers are never blocked,
+ * every views.refreshIntervalMillis and as soon as views.refreshAfterWrites writes have been recorded
+ * since the last refresh. Either trigger is disabled by setting it to 0.
+ */
+public class ViewRefresher {
+
+    private static final String[] VIEWS = { "employees_labs_view" };
+
+    private static volatile boolean materialized = DBConnector.getBooleanProperty("views.materialized", false);
+    private static final long refreshIntervalMillis = DBConnector.getLongProperty("views.refreshIntervalMillis", 5000);
+    private static final long refreshAfterWrites = DBConnector.getLongProperty("views.refreshAfterWrites", 1000);
+
+    private static final AtomicLong pendingWrites = new AtomicLong();
+    private static final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private static final Object refreshLock = new Object();
+    private static volatile ScheduledExecutorService refresher;
+
+    public static boolean isMaterialized() {
+        return materialized;
+    }
+
+    /**
+     * Overrides views.materialized; only while the tables are dropped, since it changes what
+     * createTables creates.
+     */
+    public static void setMaterialized(boolean materialized) {
+        ViewRefresher.materialized = materialized;
+    }
+
+    /**
+     * The relation a query should read for the given view: the view itself, or its snapshot.
+     */
+    public static String relation(String view, Freshness freshness) {
+        if (!materialized || freshness != Freshness.SNAPSHOT) return view;
+        start();
+        return snapshotOf(view);
+    }
+
+    /**
+     * DDL for the snapshots; run after the plain views have been created.
+     */
+    public static String[] createStatements() {
+        if (!materialized) return new String[0];
+
+        String[] statements = new String[VIEWS.length * 2];
+        for (int i = 0; i < VIEWS.length; i++) {
+            String snapshot = snapshotOf(VIEWS[i]);
+            String[] key = { "employee_id", "lab_id" };
+            statements[2 * i] = "CREATE MATERIALIZED VIEW " + snapshot + " AS SELECT * FROM " + VIEWS[i];
+            // REFRESH ... CONCURRENTLY needs a unique index to diff the old and new contents
+            statements[2 * i + 1] = "CREATE UNIQUE INDEX " + snapshot + "_key ON " + snapshot +
+                    " (" + String.join(", ", key) + ")";
+        }
+        return statements;
+    }
+
+    /**
+     * Counts writes to the tables behind the views, and queues a refresh once enough piled up.
+     */
+    public static void recordWrites(int writes) {
+        if (!materialized || writes <= 0) return;
+        ScheduledExecutorService executor = start();
+        if (refreshAfterWrites > 0 && pendingWrites.addAndGet(writes) >= refreshAfterWrites
+                && refreshQueued.compareAndSet(false, true)) {
+            executor.execute(ViewRefresher::refreshQuietly);
+        }
+    }
+
+    /**
+     * Brings every snapshot up to date before returning.
+     */
+    public static void refresh() throws SQLException {
+        if (!materialized) return;
+        synchronized (refreshLock) {
+            pendingWrites.set(0);
+            refreshQueued.set(false);
+
+            try (Connection connection = DBConnector.getConnection()) {
+                if (connection == null) throw new SQLException("Could not get a connection");
+                for (String view : VIEWS) {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "REFRESH MATERIALIZED VIEW CONCURRENTLY " + snapshotOf(view))) {
+                        statement.execute();
+                    }
+                }
+            }
+        }
+    }
+
+    public static long getPendingWrites() {
+        return pendingWrites.get();
+    }
+
+    public static synchronized void stop() {
+        if (refresher != null) refresher.shutdownNow();
+        refresher = null;
+    }
+
+    private static String snapshotOf(String view) {
+        return view.substring(0, view.length() - "view".length()) + "mview";
+    }
+
+    private static void refreshQuietly() {
+        try {
+            refresh();
+        } catch (SQLException e) {
+            // the tables may be gone (dropTables), the next trigger will try again
+            //e.printStackTrace()();
+        }
+    }
+
+    private static ScheduledExecutorService start() {
+        ScheduledExecutorService executor = refresher;
+        if (executor != null) return executor;
+        return startRefresher();
+    }
+
+    private static synchronized ScheduledExecutorService startRefresher() {
+        if (refresher != null) return refresher;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "corona-view-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (refreshIntervalMillis > 0) {
+            executor.scheduleWithFixedDelay(ViewRefresher::refreshQuietly,
+                    refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        refresher = executor;
+        return executor;
+    }
+}
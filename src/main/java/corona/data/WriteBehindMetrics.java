@@ -0,0 +1,89 @@
+package corona.data;
+
+/**
+ * A point-in-time snapshot of the {@link VaccineWriteBehind} buffer's gauges and counters.
+ */
+public class WriteBehindMetrics {
+
+    private final int pendingEvents;
+    private final int pendingVaccines;
+    private final long eventsBuffered;
+    private final long eventsFlushed;
+    private final long eventsRejectedOnFlush;
+    private final long flushedUpdates;
+    private final long totalFlushLatencyNanos;
+    private final long maxFlushLatencyNanos;
+
+    WriteBehindMetrics(int pendingEvents, int pendingVaccines, long eventsBuffered, long eventsFlushed,
+                       long eventsRejectedOnFlush, long flushedUpdates, long totalFlushLatencyNanos, long maxFlushLatencyNanos) {
+        this.pendingEvents = pendingEvents;
+        this.pendingVaccines = pendingVaccines;
+        this.eventsBuffered = eventsBuffered;
+        this.eventsFlushed = eventsFlushed;
+        this.eventsRejectedOnFlush = eventsRejectedOnFlush;
+        this.flushedUpdates = flushedUpdates;
+        this.totalFlushLatencyNanos = totalFlushLatencyNanos;
+        this.maxFlushLatencyNanos = maxFlushLatencyNanos;
+    }
+
+    public int getPendingEvents() {
+        return pendingEvents;
+    }
+
+    public int getPendingVaccines() {
+        return pendingVaccines;
+    }
+
+    public long getEventsBuffered() {
+        return eventsBuffered;
+    }
+
+    public long getEventsFlushed() {
+        return eventsFlushed;
+    }
+
+    /**
+     * Events accepted into the buffer that the vaccines row no longer allowed once they were flushed,
+     * because something outside the buffer changed it meanwhile.
+     */
+    public long getEventsRejectedOnFlush() {
+        return eventsRejectedOnFlush;
+    }
+
+    /**
+     * The number of UPDATEs the flushes issued, at most one per vaccine per flush.
+     */
+    public long getFlushedUpdates() {
+        return flushedUpdates;
+    }
+
+    public double getEventsPerUpdate() {
+        return flushedUpdates == 0 ? 0 : (double) eventsFlushed / flushedUpdates;
+    }
+
+    /**
+     * From the oldest event of a flushed batch being buffered to its UPDATE being committed.
+     */
+    public double getAverageFlushLatencyMillis() {
+        return flushedUpdates == 0 ? 0 : totalFlushLatencyNanos / 1e6 / flushedUpdates;
+    }
+
+    public double getMaxFlushLatencyMillis() {
+        return maxFlushLatencyNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("WriteBehindMetrics{");
+        sb.append("pendingEvents=").append(pendingEvents);
+        sb.append(", pendingVaccines=").append(pendingVaccines);
+        sb.append(", buffered=").append(eventsBuffered);
+        sb.append(", flushed=").append(eventsFlushed);
+        sb.append(", rejectedOnFlush=").append(eventsRejectedOnFlush);
+        sb.append(", updates=").append(flushedUpdates);
+        sb.append(", avgFlushLatencyMillis=").append(String.format("%.3f", getAverageFlushLatencyMillis()));
+        sb.append(", maxFlushLatencyMillis=").append(String.format("%.3f", getMaxFlushLatencyMillis()));
+        sb.append('}');
+        return sb.toString();
+    }
+}
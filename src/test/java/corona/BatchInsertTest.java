@@ -0,0 +1,55 @@
+package corona;
+
+import corona.business.ReturnValue;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class BatchInsertTest extends AbstractTest {
+
+    @Test
+    public void testAddLabs() {
+        assertEquals(OK, Solution.addLab(newLab(3, "Weizmann", "Rehovot", true)));
+
+        ReturnValue[] ret = Solution.addLabs(Arrays.asList(
+                newLab(1, "Technion", "Haifa", true),
+                newLab(2, "Chicago", "Raanana", false),
+                newLab(1, "Technion Again", "Haifa", true),
+                newLab(3, "Weizmann Again", "Rehovot", true),
+                newLab(0, "Zero", "Raanana", true),
+                newLab(4, null, "Raanana", true)));
+        assertArrayEquals(new ReturnValue[]{OK, OK, ALREADY_EXISTS, ALREADY_EXISTS, BAD_PARAMS, BAD_PARAMS}, ret);
+
+        assertEquals(newLab(2, "Chicago", "Raanana", false), Solution.getLabProfile(2));
+        assertEquals(newLab(3, "Weizmann", "Rehovot", true), Solution.getLabProfile(3));
+    }
+
+    @Test
+    public void testAddEmployees() {
+        ReturnValue[] ret = Solution.addEmployees(Arrays.asList(
+                newEmployee(1, "Roei", "Haifa"),
+                newEmployee(-1, "Negative", "Haifa"),
+                newEmployee(2, "Dana", null),
+                newEmployee(1, "Roei Again", "Haifa")));
+        assertArrayEquals(new ReturnValue[]{OK, BAD_PARAMS, BAD_PARAMS, ALREADY_EXISTS}, ret);
+
+        assertEquals(newEmployee(1, "Roei", "Haifa"), Solution.getEmployeeProfile(1));
+        assertEquals(ALREADY_EXISTS, Solution.addEmployee(newEmployee(1, "Roei", "Haifa")));
+    }
+
+    @Test
+    public void testAddVaccines() {
+        ReturnValue[] ret = Solution.addVaccines(Arrays.asList(
+                newVaccine(1, "Pfizer", 10, 100, 50),
+                newVaccine(2, "Moderna", -10, 100, 50),
+                newVaccine(3, "Sputnik", 10, -1, 50),
+                newVaccine(4, "AstraZeneca", 10, 100, 30)));
+        assertArrayEquals(new ReturnValue[]{OK, BAD_PARAMS, BAD_PARAMS, OK}, ret);
+
+        assertEquals(newVaccine(4, "AstraZeneca", 10, 100, 30), Solution.getVaccineProfile(4));
+        assertEquals(0, Solution.addVaccines(Arrays.asList()).length);
+    }
+}
@@ -0,0 +1,61 @@
+package corona;
+
+import corona.data.BulkLoader;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class BulkLoaderTest extends AbstractTest {
+
+    private static InputStream csv(String... lines) {
+        return new ByteArrayInputStream(String.join("\n", lines).concat("\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLoadLabsReportsRejectedRows() throws Exception {
+        Solution.addLab(newLab(4, "Weizmann", "Rehovot", true));
+
+        BulkLoader.LoadReport report = BulkLoader.load(BulkLoader.Table.LABS, csv(
+                "id,name,city,active",
+                "1,Technion,Haifa,true",
+                "2,Chicago,,false",
+                "1,Technion Again,Haifa,true",
+                "4,Weizmann Again,Rehovot,true",
+                "0,Zero,Raanana,true",
+                "3,Hebrew U,Jerusalem,false"), BulkLoader.Format.CSV_WITH_HEADER);
+
+        assertEquals(6, report.getRowsRead());
+        assertEquals(2, report.getRowsLoaded());
+        assertEquals(BAD_PARAMS, report.getRejectedRows().get(2L));
+        assertEquals(ALREADY_EXISTS, report.getRejectedRows().get(3L));
+        assertEquals(ALREADY_EXISTS, report.getRejectedRows().get(4L));
+        assertEquals(BAD_PARAMS, report.getRejectedRows().get(5L));
+
+        assertEquals(newLab(1, "Technion", "Haifa", true), Solution.getLabProfile(1));
+        assertEquals(newLab(3, "Hebrew U", "Jerusalem", false), Solution.getLabProfile(3));
+    }
+
+    @Test
+    public void testLoadRelationshipsRequiresReferencedRows() throws Exception {
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addEmployee(newEmployee(1, "Roei", "Haifa"));
+
+        BulkLoader.LoadReport report = BulkLoader.load(BulkLoader.Table.EMPLOYEES_LABS, csv(
+                "1,1,100",
+                "2,1,100",
+                "1,1,200",
+                "2,1,300"), BulkLoader.Format.CSV);
+
+        assertEquals(1, report.getRowsLoaded());
+        assertEquals(NOT_EXISTS, report.getRejectedRows().get(2L));
+        assertEquals(ALREADY_EXISTS, report.getRejectedRows().get(3L));
+        // a duplicate of a row with a missing reference is missing it too
+        assertEquals(NOT_EXISTS, report.getRejectedRows().get(4L));
+        assertEquals(Integer.valueOf(100), Solution.getTotalWages(1));
+    }
+}
@@ -0,0 +1,62 @@
+package corona;
+
+import corona.business.EmployeeLab;
+import corona.business.ReturnValue;
+import corona.business.VaccineLab;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class BulkRelationshipTest extends AbstractTest {
+
+    @Test
+    public void testEmployeesJoinAndLeaveLabs() {
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addLab(newLab(2, "Weizmann", "Rehovot", true));
+        Solution.addEmployee(newEmployee(10, "Roei", "Haifa"));
+        Solution.addEmployee(newEmployee(11, "Dana", "Haifa"));
+        assertEquals(OK, Solution.employeeJoinLab(11, 2, 50));
+
+        ReturnValue[] ret = Solution.employeesJoinLabs(Arrays.asList(
+                new EmployeeLab(10, 1, 100),
+                new EmployeeLab(10, 2, -5),
+                new EmployeeLab(10, 2, 200),
+                new EmployeeLab(10, 1, 300),
+                new EmployeeLab(11, 2, 70),
+                new EmployeeLab(12, 1, 100)));
+        assertArrayEquals(new ReturnValue[]{OK, BAD_PARAMS, OK, ALREADY_EXISTS, ALREADY_EXISTS, NOT_EXISTS}, ret);
+        assertEquals(Integer.valueOf(100), Solution.getTotalWages(1));
+        assertEquals(Integer.valueOf(250), Solution.getTotalWages(2));
+
+        ret = Solution.employeesLeftLabs(Arrays.asList(
+                new EmployeeLab(10, 1, null),
+                new EmployeeLab(10, 1, null),
+                new EmployeeLab(11, 1, null)));
+        assertArrayEquals(new ReturnValue[]{OK, NOT_EXISTS, NOT_EXISTS}, ret);
+        assertEquals(Integer.valueOf(0), Solution.getTotalWages(1));
+    }
+
+    @Test
+    public void testLabsProduceAndStopVaccines() {
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addVaccine(newVaccine(5, "COVID-19", 100, 30, 10));
+        Solution.addVaccine(newVaccine(6, "COVID-20", 100, 30, 50));
+
+        ReturnValue[] ret = Solution.labsProduceVaccines(Arrays.asList(
+                new VaccineLab(5, 1),
+                new VaccineLab(6, 1),
+                new VaccineLab(5, 1),
+                new VaccineLab(7, 1)));
+        assertArrayEquals(new ReturnValue[]{OK, OK, ALREADY_EXISTS, NOT_EXISTS}, ret);
+        assertFalse(Solution.isLabPopular(1));
+
+        ret = Solution.labsStoppedProducingVaccines(Arrays.asList(
+                new VaccineLab(5, 1),
+                new VaccineLab(7, 1)));
+        assertArrayEquals(new ReturnValue[]{OK, NOT_EXISTS}, ret);
+        assertTrue(Solution.isLabPopular(1));
+    }
+}
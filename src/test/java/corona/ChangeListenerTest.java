@@ -0,0 +1,49 @@
+package corona;
+
+import corona.data.ChangeListener;
+import corona.data.DBConnector;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import static org.junit.Assert.*;
+
+public class ChangeListenerTest extends AbstractTest {
+
+    private static boolean configured;
+
+    // hide AbstractTest's, to create the notifying triggers whatever notify.enabled says
+    @BeforeClass
+    public static void createTables() {
+        configured = ChangeListener.isEnabled();
+        ChangeListener.setEnabled(true);
+        Solution.createTables();
+    }
+
+    @AfterClass
+    public static void dropTables() {
+        Solution.dropTables();
+        ChangeListener.setEnabled(configured);
+    }
+
+    @Test
+    public void testWriteFromAnotherNodeInvalidatesCache() throws Exception {
+        Solution.addVaccine(newVaccine(1, "Pfizer", 10, 100, 50));
+        assertEquals("Pfizer", Solution.getVaccineProfile(1).getName());
+
+        // what another node would do: write without going through this JVM's Solution
+        try (Connection connection = DBConnector.getConnection();
+             PreparedStatement statement = connection.prepareStatement("UPDATE vaccines SET name = 'Moderna' WHERE id = 1")) {
+            statement.executeUpdate();
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!"Moderna".equals(Solution.getVaccineProfile(1).getName()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("Moderna", Solution.getVaccineProfile(1).getName());
+    }
+}
@@ -0,0 +1,74 @@
+package corona;
+
+import corona.business.EmployeeLab;
+import corona.business.Freshness;
+import corona.data.ViewRefresher;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class CloseEmployeesIndexTest extends AbstractTest {
+
+    private static final String[] CITIES = { "Haifa", "Rehovot", "Jerusalem", "Beersheba" };
+
+    @Test
+    public void testIndexAgreesWithTheView() throws Exception {
+        for (int id = 1; id <= 12; id++) {
+            assertEquals(OK, Solution.addLab(newLab(id, "Lab" + id, CITIES[id % CITIES.length], true)));
+        }
+        for (int id = 1; id <= 30; id++) {
+            assertEquals(OK, Solution.addEmployee(newEmployee(id, "Employee" + id, "Haifa")));
+        }
+
+        // warm the index up before the writes, so they are applied to it one by one
+        assertEquals(new ArrayList<Integer>(), Solution.getCloseEmployees(1));
+
+        Random random = new Random(236363);
+        for (int i = 0; i < 200; i++) {
+            int employee = 1 + random.nextInt(30);
+            int lab = 1 + random.nextInt(12);
+            if (random.nextInt(3) == 0) Solution.employeeLeftLab(lab, employee);
+            else Solution.employeeJoinLab(employee, lab, 100);
+        }
+
+        ViewRefresher.refresh();
+        HashMap<Integer, ArrayList<Integer>> all = Solution.getCloseEmployeesForAll();
+        for (int id = 1; id <= 30; id++) {
+            // with views.materialized off SNAPSHOT reads employees_labs_view, bypassing the index
+            ArrayList<Integer> expected = Solution.getCloseEmployees(id, Freshness.SNAPSHOT);
+            assertEquals(expected, Solution.getCloseEmployees(id));
+            assertEquals(expected, all.getOrDefault(id, new ArrayList<>()));
+        }
+    }
+
+    @Test
+    public void testSetBasedCallsAreRechecked() throws Exception {
+        for (int id = 1; id <= 4; id++) {
+            assertEquals(OK, Solution.addLab(newLab(id, "Lab" + id, CITIES[id - 1], true)));
+            assertEquals(OK, Solution.addEmployee(newEmployee(id, "Employee" + id, "Haifa")));
+        }
+        assertEquals(new ArrayList<Integer>(), Solution.getCloseEmployees(1));
+
+        Solution.employeesJoinLabs(Arrays.asList(
+                new EmployeeLab(1, 1, 100), new EmployeeLab(1, 2, 100),
+                new EmployeeLab(2, 1, 100), new EmployeeLab(3, 3, 100),
+                new EmployeeLab(4, 1, 100), new EmployeeLab(4, 2, 100)));
+        assertEquals(Arrays.asList(2, 4), Solution.getCloseEmployees(1));
+
+        // the failed pair (already left) must not be applied
+        Solution.employeesLeftLabs(Arrays.asList(new EmployeeLab(4, 1, 0), new EmployeeLab(3, 1, 0)));
+        assertEquals(Arrays.asList(2, 4), Solution.getCloseEmployees(1));
+        Solution.employeesLeftLabs(Arrays.asList(new EmployeeLab(4, 2, 0), new EmployeeLab(2, 1, 0)));
+        assertEquals(new ArrayList<Integer>(), Solution.getCloseEmployees(1));
+
+        for (int id = 1; id <= 4; id++) {
+            assertEquals(Solution.getCloseEmployees(id, Freshness.SNAPSHOT), Solution.getCloseEmployees(id));
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package corona;
+
+import corona.business.Lab;
+import corona.business.Vaccine;
+import org.junit.Test;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class EntityCacheTest extends AbstractTest {
+
+    @Test
+    public void testProfilesSeeWrites() {
+        Solution.addVaccine(newVaccine(1, "Pfizer", 10, 100, 50));
+        assertEquals(100, (int) Solution.getVaccineProfile(1).getUnits());
+
+        assertEquals(OK, Solution.vaccineSold(1, 10));
+        Vaccine sold = Solution.getVaccineProfile(1);
+        assertEquals(90, (int) sold.getUnits());
+        assertEquals(20, (int) sold.getCost());
+
+        assertEquals(OK, Solution.deleteVaccine(sold));
+        assertEquals(Vaccine.badVaccine(), Solution.getVaccineProfile(1));
+    }
+
+    @Test
+    public void testCachedProfileCannotBeModifiedByCaller() {
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.getLabProfile(1).setName("Changed");
+        assertEquals("Technion", Solution.getLabProfile(1).getName());
+    }
+}
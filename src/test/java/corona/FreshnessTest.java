@@ -0,0 +1,49 @@
+package corona;
+
+import corona.business.Freshness;
+import corona.data.ViewRefresher;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class FreshnessTest extends AbstractTest {
+
+    private static boolean configured;
+
+    // hide AbstractTest's, to create the snapshot whatever views.materialized says
+    @BeforeClass
+    public static void createTables() {
+        configured = ViewRefresher.isMaterialized();
+        ViewRefresher.setMaterialized(true);
+        Solution.createTables();
+    }
+
+    @AfterClass
+    public static void dropTables() {
+        Solution.dropTables();
+        ViewRefresher.setMaterialized(configured);
+    }
+
+    @Test
+    public void testSnapshotMatchesLiveAfterRefresh() throws Exception {
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addEmployee(newEmployee(1, "Alice", "Haifa"));
+        Solution.addEmployee(newEmployee(2, "Bob", "Haifa"));
+        Solution.employeeJoinLab(1, 1, 100);
+        Solution.employeeJoinLab(2, 1, 100);
+
+        // the snapshot was taken when the tables were created
+        assertEquals(new ArrayList<>(Collections.singletonList(2)), Solution.getCloseEmployees(1));
+        assertEquals(new ArrayList<Integer>(), Solution.getCloseEmployees(1, Freshness.SNAPSHOT));
+
+        ViewRefresher.refresh();
+
+        assertEquals(Solution.getCloseEmployees(1), Solution.getCloseEmployees(1, Freshness.SNAPSHOT));
+        assertEquals(Solution.getCloseEmployees(2), Solution.getCloseEmployees(2, Freshness.SNAPSHOT));
+    }
+}
@@ -0,0 +1,124 @@
+package corona;
+
+import corona.data.ChangeListener;
+import corona.data.DBConnector;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs EXPLAIN on every query in queries.sql against a synthetic dataset and fails if a hot path
+ * reads one of its selective tables with a sequential scan.
+ */
+public class IndexPlanTest extends AbstractTest {
+
+    private static final Map<String, List<String>> NO_SEQ_SCAN = new HashMap<>();
+
+    static {
+        NO_SEQ_SCAN.put("isLabPopular", Arrays.asList("lab_vaccine_stats"));
+        NO_SEQ_SCAN.put("getTotalWages", Arrays.asList("lab_wage_totals"));
+        NO_SEQ_SCAN.put("getPopularLabs", Arrays.asList("lab_vaccine_stats"));
+        NO_SEQ_SCAN.put("getMostRatedVaccines", Arrays.asList("vaccines"));
+        NO_SEQ_SCAN.put("getCloseEmployees", Arrays.asList("labs"));
+        NO_SEQ_SCAN.put("getBestLab", Arrays.asList("lab_same_city_counts"));
+        NO_SEQ_SCAN.put("getMostPopularCity", Arrays.asList("city_employment_counts"));
+    }
+
+    private static final String[] SEED = {
+            "INSERT INTO labs (id, name, city, active) " +
+                "SELECT g, 'Lab' || g, 'City' || (g % 1000), g % 10 <> 0 FROM generate_series(1, 5000) g",
+            "INSERT INTO employees (id, name, city) " +
+                "SELECT g, 'Employee' || g, 'City' || (g % 1000) FROM generate_series(1, 50000) g",
+            "INSERT INTO vaccines (id, name, cost, stock, productivity) " +
+                "SELECT g, 'Vaccine' || g, g % 50, g % 1000, CASE WHEN g % 100 = 0 THEN 10 ELSE 20 + g % 80 END " +
+                "FROM generate_series(1, 20000) g",
+            // two labs per employee and per vaccine; the two lab formulas never pick the same lab twice
+            "INSERT INTO employees_labs (employee_id, lab_id, salary) " +
+                "SELECT g, 1 + (g * 7) % 5000, 1000 + g % 500 FROM generate_series(1, 50000) g " +
+                "UNION ALL SELECT g, 1 + (g * 13 + 1) % 5000, 1000 FROM generate_series(1, 50000) g",
+            "INSERT INTO vaccines_labs (vaccine_id, lab_id) " +
+                "SELECT g, 1 + g % 5000 FROM generate_series(1, 20000) g " +
+                "UNION ALL SELECT g, 1 + (g * 3 + 1) % 5000 FROM generate_series(1, 20000) g",
+            "ANALYZE"
+    };
+
+    @Test
+    public void testHotQueriesUseIndexes() throws Exception {
+        Map<String, String> queries = readQueries();
+        assertTrue(queries.keySet().containsAll(NO_SEQ_SCAN.keySet()));
+
+        ArrayList<String> failures = new ArrayList<>();
+        try (Connection connection = DBConnector.getConnection()) {
+            seed(connection);
+
+            for (Map.Entry<String, String> query : queries.entrySet()) {
+                String plan = explain(connection, query.getValue());
+                for (String table : NO_SEQ_SCAN.getOrDefault(query.getKey(), new ArrayList<>())) {
+                    if (Pattern.compile("Seq Scan on " + table + "\\b").matcher(plan).find())
+                        failures.add(query.getKey() + " scans " + table + ":\n" + plan);
+                }
+            }
+        }
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+    }
+
+    private static void seed(Connection connection) throws Exception {
+        // one NOTIFY per seeded row would only slow the seeding down
+        ArrayList<String> statements = new ArrayList<>();
+        String[] tables = { "labs", "employees", "vaccines", "employees_labs", "vaccines_labs" };
+        if (ChangeListener.isEnabled())
+            for (String table : tables) statements.add("ALTER TABLE " + table + " DISABLE TRIGGER " + table + "_notify");
+        statements.addAll(Arrays.asList(SEED));
+        if (ChangeListener.isEnabled())
+            for (String table : tables) statements.add("ALTER TABLE " + table + " ENABLE TRIGGER " + table + "_notify");
+
+        for (String sql : statements) {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.execute();
+            }
+        }
+    }
+
+    private static String explain(Connection connection, String query) throws Exception {
+        StringBuilder plan = new StringBuilder();
+        try (PreparedStatement statement = connection.prepareStatement("EXPLAIN " + query);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) plan.append(resultSet.getString(1)).append('\n');
+        }
+        return plan.toString();
+    }
+
+    /**
+     * The queries in queries.sql by name; every query is preceded by a "-- name" line.
+     */
+    private static Map<String, String> readQueries() throws Exception {
+        Map<String, String> queries = new LinkedHashMap<>();
+        String name = null;
+        StringBuilder query = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get("queries.sql"), StandardCharsets.UTF_8)) {
+            if (line.startsWith("--")) {
+                if (name != null) queries.put(name, query.toString().trim().replaceAll(";$", ""));
+                name = line.substring(2).trim();
+                query.setLength(0);
+            } else {
+                query.append(line).append('\n');
+            }
+        }
+        if (name != null) queries.put(name, query.toString().trim().replaceAll(";$", ""));
+        return queries;
+    }
+}
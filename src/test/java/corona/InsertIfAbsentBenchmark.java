@@ -0,0 +1,45 @@
+package corona;
+
+import corona.business.Lab;
+import corona.business.ReturnValue;
+import corona.data.DBConnector;
+
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * addLab against addLabIfAbsent when most calls are retries of a lab that is already there.
+ */
+public class InsertIfAbsentBenchmark {
+
+    private static final int CALLS = 20000;
+    private static final double DUPLICATE_RATE = 0.9;
+
+    public static void main(String[] args) {
+        run("addLab", Solution::addLab);
+        run("addLabIfAbsent", Solution::addLabIfAbsent);
+        DBConnector.closePool();
+    }
+
+    private static void run(String name, Function<Lab, ReturnValue> add) {
+        Solution.dropTables();
+        Solution.createTables();
+
+        Random random = new Random(42);
+        int nextId = 1;
+        int duplicates = 0;
+        // warm up the pool, the statement cache and the JIT on something we do not measure
+        for (int i = 0; i < 1000; i++) add.apply(AbstractTest.newLab(nextId++, "Lab", "Haifa", true));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            int id = random.nextDouble() < DUPLICATE_RATE ? 1 + random.nextInt(nextId - 1) : nextId++;
+            if (add.apply(AbstractTest.newLab(id, "Lab", "Haifa", true)) == ReturnValue.ALREADY_EXISTS) duplicates++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%s: %d calls (%d duplicates) in %.1fms, %.1fus per call",
+                name, CALLS, duplicates, elapsed / 1e6, elapsed / 1e3 / CALLS));
+        Solution.dropTables();
+    }
+}
@@ -0,0 +1,29 @@
+package corona;
+
+import org.junit.Test;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class InsertIfAbsentTest extends AbstractTest {
+
+    @Test
+    public void testInsertIfAbsent() {
+        assertEquals(OK, Solution.addLabIfAbsent(newLab(1, "Technion", "Haifa", true)));
+        assertEquals(ALREADY_EXISTS, Solution.addLabIfAbsent(newLab(1, "Technion", "Haifa", true)));
+        assertEquals(ALREADY_EXISTS, Solution.addLab(newLab(1, "Technion", "Haifa", true)));
+        assertEquals(BAD_PARAMS, Solution.addLabIfAbsent(newLab(-1, "Technion", "Haifa", true)));
+
+        assertEquals(OK, Solution.addEmployeeIfAbsent(newEmployee(1, "Dana", "Haifa")));
+        assertEquals(ALREADY_EXISTS, Solution.addEmployeeIfAbsent(newEmployee(1, "Dana", "Haifa")));
+        assertEquals(OK, Solution.addVaccineIfAbsent(newVaccine(1, "Pfizer", 10, 100, 50)));
+        assertEquals(ALREADY_EXISTS, Solution.addVaccineIfAbsent(newVaccine(1, "Pfizer", 10, 100, 50)));
+
+        assertEquals(OK, Solution.employeeJoinLabIfAbsent(1, 1, 100));
+        assertEquals(ALREADY_EXISTS, Solution.employeeJoinLabIfAbsent(1, 1, 100));
+        assertEquals(NOT_EXISTS, Solution.employeeJoinLabIfAbsent(2, 1, 100));
+        assertEquals(OK, Solution.labProduceVaccineIfAbsent(1, 1));
+        assertEquals(ALREADY_EXISTS, Solution.labProduceVaccineIfAbsent(1, 1));
+        assertEquals(NOT_EXISTS, Solution.labProduceVaccineIfAbsent(2, 1));
+    }
+}
@@ -0,0 +1,121 @@
+package corona;
+
+import corona.business.EmployeeLab;
+import corona.data.DBConnector;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class PartitionedSchemaTest extends AbstractTest {
+
+    private static final int PARTITIONS = 4;
+
+    private static String configured;
+
+    // hide AbstractTest's, to create the junction tables partitioned whatever schema.partitions says
+    @BeforeClass
+    public static void createTables() {
+        configured = DBConnector.getProperty("schema.partitions", null);
+        DBConnector.setProperty("schema.partitions", String.valueOf(PARTITIONS));
+        Solution.createTables();
+    }
+
+    @AfterClass
+    public static void dropTables() {
+        Solution.dropTables();
+        DBConnector.setProperty("schema.partitions", configured);
+    }
+
+    @Test
+    public void testJunctionTablesArePartitioned() throws Exception {
+        assertEquals(PARTITIONS, partitions("employees_labs"));
+        assertEquals(PARTITIONS, partitions("vaccines_labs"));
+    }
+
+    @Test
+    public void testDeletesKeepTheSummariesUpToDate() {
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addLab(newLab(2, "Weizmann", "Rehovot", true));
+        Solution.addLab(newLab(3, "Hebrew U", "Jerusalem", true));
+        Solution.addEmployee(newEmployee(1, "Alice", "Haifa"));
+        Solution.addEmployee(newEmployee(2, "Bob", "Rehovot"));
+        Solution.addEmployee(newEmployee(3, "Carol", "Rehovot"));
+        Solution.addVaccine(newVaccine(1, "Pfizer", 10, 100, 10));
+
+        assertEquals(OK, Solution.employeeJoinLab(1, 1, 100));
+        assertEquals(OK, Solution.employeeJoinLab(2, 2, 200));
+        assertEquals(OK, Solution.employeeJoinLab(3, 2, 300));
+        assertEquals(OK, Solution.employeeJoinLab(1, 3, 400));
+        assertEquals(OK, Solution.labProduceVaccine(1, 3));
+        assertEquals(500, (int) Solution.getTotalWages(2));
+        assertEquals(2, (int) Solution.getBestLab());
+        assertEquals("Rehovot", Solution.getMostPopularCity());
+        assertFalse(Solution.isLabPopular(3));
+
+        assertEquals(OK, Solution.employeeLeftLab(2, 2));
+        assertEquals(NOT_EXISTS, Solution.employeeLeftLab(2, 2));
+        assertEquals(300, (int) Solution.getTotalWages(2));
+
+        // set-based, over rows in different partitions
+        assertArrayEquals(new Object[] { OK, OK, NOT_EXISTS }, Solution.employeesLeftLabs(Arrays.asList(
+                new EmployeeLab(3, 2, 0), new EmployeeLab(1, 3, 0), new EmployeeLab(1, 2, 0))));
+        assertEquals(0, (int) Solution.getTotalWages(2));
+        assertEquals(1, (int) Solution.getBestLab());
+        assertEquals("Haifa", Solution.getMostPopularCity());
+
+        assertEquals(OK, Solution.labStoppedProducingVaccine(3, 1));
+        assertTrue(Solution.isLabPopular(3));
+        assertEquals(OK, Solution.deleteLab(newLab(3, "Hebrew U", "Jerusalem", true)));
+    }
+
+    @Test
+    public void testLabLookupsTouchOnePartition() throws Exception {
+        try (Connection connection = DBConnector.getConnection()) {
+            assertEquals(1, partitionsIn(explain(connection,
+                    "DELETE FROM employees_labs el WHERE el.employee_id = 1 AND el.lab_id = 2"), "employees_labs"));
+            assertEquals(1, partitionsIn(explain(connection,
+                    "DELETE FROM vaccines_labs vl WHERE vl.vaccine_id = 1 AND vl.lab_id = 2"), "vaccines_labs"));
+            assertEquals(1, partitionsIn(explain(connection,
+                    "SELECT sum(el.salary) FROM employees_labs el WHERE el.lab_id = 3"), "employees_labs"));
+        }
+    }
+
+    private static int partitions(String table) throws Exception {
+        try (Connection connection = DBConnector.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT count(*) FROM pg_inherits i WHERE i.inhparent = ?::regclass")) {
+            statement.setString(1, table);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+
+    private static String explain(Connection connection, String query) throws Exception {
+        StringBuilder plan = new StringBuilder();
+        try (PreparedStatement statement = connection.prepareStatement("EXPLAIN " + query);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) plan.append(resultSet.getString(1)).append('\n');
+        }
+        return plan.toString();
+    }
+
+    private static int partitionsIn(String plan, String table) {
+        Matcher matcher = Pattern.compile("\\b" + table + "_p\\d+\\b").matcher(plan);
+        ArrayList<String> seen = new ArrayList<>();
+        while (matcher.find()) if (!seen.contains(matcher.group())) seen.add(matcher.group());
+        return seen.size();
+    }
+}
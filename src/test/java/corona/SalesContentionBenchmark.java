@@ -0,0 +1,55 @@
+package corona;
+
+import corona.business.ReturnValue;
+import corona.data.DBConnector;
+import corona.data.SalesLedger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 64 writers selling one vaccine as fast as they can, with whatever sales.ledger is set to.
+ * Run it once with the ledger off and once with it on; pool.maxSize should be at least 64, or the
+ * writers queue up for connections instead of for the vaccine.
+ */
+public class SalesContentionBenchmark {
+
+    private static final int WRITERS = 64;
+    private static final long DURATION_MILLIS = 10000;
+    private static final int STOCK = 100000000;
+
+    public static void main(String[] args) throws Exception {
+        Solution.dropTables();
+        Solution.createTables();
+        // cost 0 keeps cost * 2 from overflowing after a few dozen sales
+        Solution.addVaccine(AbstractTest.newVaccine(1, "Pfizer", 0, STOCK, 50));
+
+        AtomicLong sold = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            Thread writer = new Thread(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    if (Solution.vaccineSold(1, 1) == ReturnValue.OK) sold.incrementAndGet();
+                    else failed.incrementAndGet();
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) writer.join();
+
+        SalesLedger.compact();
+        int units = Solution.getVaccineProfile(1).getUnits();
+
+        System.out.println("sales.ledger=" + SalesLedger.isEnabled() + ", pool.maxSize=" + DBConnector.getMaxPoolSize());
+        System.out.println(WRITERS + " writers: " + sold.get() + " sales (" + failed.get() + " failed) in "
+                + DURATION_MILLIS + "ms, " + sold.get() * 1000 / DURATION_MILLIS + " sales/s");
+        System.out.println("stock left " + units + ", expected " + (STOCK - sold.get()));
+
+        Solution.dropTables();
+        DBConnector.closePool();
+    }
+}
@@ -0,0 +1,120 @@
+package corona;
+
+import corona.business.ReturnValue;
+import corona.business.Vaccine;
+import corona.data.DBConnector;
+import corona.data.EntityCache;
+import corona.data.SalesLedger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SalesLedgerTest extends AbstractTest {
+
+    private static boolean configured;
+
+    // hide AbstractTest's, to create the tables with the ledger on whatever sales.ledger says
+    @BeforeClass
+    public static void createTables() {
+        configured = SalesLedger.isEnabled();
+        SalesLedger.setEnabled(true);
+        Solution.createTables();
+    }
+
+    @AfterClass
+    public static void dropTables() {
+        Solution.dropTables();
+        SalesLedger.setEnabled(configured);
+    }
+
+    @Test
+    public void testMergedStateMatchesPlainUpdates() throws Exception {
+        Solution.addVaccine(newVaccine(1, "Pfizer", 3, 10, 80));
+        assertEquals(ReturnValue.OK, Solution.vaccineSold(1, 4));
+        assertEquals(ReturnValue.OK, Solution.vaccineProduced(1, 5));
+        assertEquals(ReturnValue.OK, Solution.vaccineSold(1, 2));
+        assertEquals(ReturnValue.BAD_PARAMS, Solution.vaccineSold(1, 100));
+
+        // cost 3 -> 6 -> 3 -> 6, sales 3 * 4 + 3 * 2
+        assertVaccine(Solution.getVaccineProfile(1), 6, 9, 95);
+        assertEquals(18, (int) Solution.getIncomeFromVaccine(1));
+
+        // the background compactor may already have folded some of the events
+        SalesLedger.compact();
+        assertEquals(0, SalesLedger.compact());
+        assertVaccine(Solution.getVaccineProfile(1), 6, 9, 95);
+        assertEquals(18, (int) Solution.getIncomeFromVaccine(1));
+    }
+
+    @Test
+    public void testConcurrentSalesNeverOversell() throws Exception {
+        Solution.addVaccine(newVaccine(1, "Pfizer", 0, 100, 50));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<ReturnValue>> sales = new ArrayList<>();
+        for (int i = 0; i < 150; i++) sales.add(executor.submit(() -> Solution.vaccineSold(1, 1)));
+
+        int sold = 0;
+        for (Future<ReturnValue> sale : sales) if (sale.get() == ReturnValue.OK) sold++;
+        executor.shutdown();
+
+        assertEquals(100, sold);
+        assertEquals(0, Solution.getVaccineProfile(1).getUnits());
+    }
+
+    @Test
+    public void testEventsFoldInCommitOrder() throws Exception {
+        Solution.addVaccine(newVaccine(1, "Pfizer", 3, 10, 80));
+
+        try (Connection older = DBConnector.getConnection()) {
+            older.setAutoCommit(false);
+            try (PreparedStatement statement = older.prepareStatement("SELECT ledger_vaccine_sold(1, 2)")) {
+                statement.executeQuery().close();
+            }
+
+            // written after the sale, but committed before it
+            assertEquals(ReturnValue.OK, Solution.vaccineProduced(1, 5));
+            SalesLedger.compact();
+            assertEquals(0, pendingEvents());
+            // cost 3 -> 1
+            assertVaccine(Solution.getVaccineProfile(1), 1, 15, 65);
+
+            older.commit();
+        }
+        // the sale bypassed Solution, so nothing dropped the cached profile
+        EntityCache.invalidateAllCaches();
+
+        // cost 1 -> 2, sales 1 * 2
+        assertVaccine(Solution.getVaccineProfile(1), 2, 13, 80);
+        assertEquals(2, (int) Solution.getIncomeFromVaccine(1));
+        SalesLedger.compact();
+        assertEquals(0, pendingEvents());
+        assertVaccine(Solution.getVaccineProfile(1), 2, 13, 80);
+    }
+
+    private static int pendingEvents() throws Exception {
+        try (Connection connection = DBConnector.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT count(*) FROM vaccine_events");
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    private static void assertVaccine(Vaccine vaccine, int cost, int units, int productivity) {
+        assertEquals(cost, vaccine.getCost());
+        assertEquals(units, vaccine.getUnits());
+        assertEquals(productivity, vaccine.getProductivity());
+    }
+}
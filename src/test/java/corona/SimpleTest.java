@@ -281,4 +281,25 @@ public class SimpleTest extends AbstractTest{
         assertEquals(1, retlist.size());
         assertEquals(ea.getId(), (int)retlist.get(0));
     }
+
+    @Test
+    public void testGetMostRatedVaccinesLimit() {
+        Vaccine va = newVaccine(10, "Vaccinia",32, 1000, 50);
+        Vaccine vb = newVaccine(7, "Trufa",16, 50, 10);
+        // a rating past the integer range still ranks first
+        Vaccine vc = newVaccine(3, "Moderna",0, Integer.MAX_VALUE, 100);
+        assertEquals(OK, Solution.addVaccine(va));
+        assertEquals(OK, Solution.addVaccine(vb));
+
+        ArrayList<Integer> retlist = Solution.getMostRatedVaccines(1);
+        assertNotNull(retlist);
+        assertEquals(1, retlist.size());
+        assertEquals(va.getId(), (int)retlist.get(0));
+        assertEquals(0, Solution.getMostRatedVaccines(0).size());
+
+        assertEquals(OK, Solution.addVaccine(vc));
+        retlist = Solution.getMostRatedVaccines(2);
+        assertEquals(vc.getId(), (int)retlist.get(0));
+        assertEquals(va.getId(), (int)retlist.get(1));
+    }
 }
@@ -0,0 +1,46 @@
+package corona;
+
+import corona.business.Lab;
+import corona.data.KeysetScanner;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class StreamingTest extends AbstractTest {
+
+    @Test
+    public void testForEachLabVisitsAllLabsInOrder() {
+        Solution.addLab(newLab(3, "Hebrew U", "Jerusalem", false));
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addLab(newLab(2, "Weizmann", "Rehovot", true));
+
+        ArrayList<Lab> labs = new ArrayList<>();
+        assertEquals(OK, Solution.forEachLab(labs::add));
+        assertEquals(Arrays.asList(
+                newLab(1, "Technion", "Haifa", true),
+                newLab(2, "Weizmann", "Rehovot", true),
+                newLab(3, "Hebrew U", "Jerusalem", false)), labs);
+    }
+
+    @Test
+    public void testScannerPagesThroughCompositeKeys() throws Exception {
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addLab(newLab(2, "Weizmann", "Rehovot", true));
+        for (int id = 1; id <= 3; id++) {
+            Solution.addEmployee(newEmployee(id, "Employee" + id, "Haifa"));
+            Solution.employeeJoinLab(id, 1, 100);
+            Solution.employeeJoinLab(id, 2, 100);
+        }
+
+        ArrayList<String> keys = new ArrayList<>();
+        long scanned = new KeysetScanner("SELECT employee_id, lab_id FROM employees_labs", 4, 2,
+                "employee_id", "lab_id").scan(row -> keys.add(row.getInt(1) + ":" + row.getInt(2)));
+
+        assertEquals(6, scanned);
+        assertEquals(Arrays.asList("1:1", "1:2", "2:1", "2:2", "3:1", "3:2"), keys);
+    }
+}
@@ -0,0 +1,106 @@
+package corona;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class SummaryTablesTest extends AbstractTest {
+
+    @Test
+    public void testPopularityFollowsProductivityChanges() {
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addLab(newLab(2, "Weizmann", "Rehovot", true));
+        Solution.addLab(newLab(3, "Hebrew U", "Jerusalem", true));
+        Solution.addVaccine(newVaccine(1, "Pfizer", 10, 100, 40));
+        Solution.addVaccine(newVaccine(2, "Moderna", 10, 100, 50));
+        Solution.labProduceVaccine(1, 1);
+        Solution.labProduceVaccine(1, 2);
+        Solution.labProduceVaccine(2, 2);
+
+        assertTrue(Solution.isLabPopular(1));
+        assertTrue(Solution.isLabPopular(3));
+        assertEquals(new ArrayList<>(Arrays.asList(1, 2)), Solution.getPopularLabs());
+
+        // 40 -> 25 -> 10: vaccine 1 becomes unproductive and takes lab 1 with it
+        assertEquals(OK, Solution.vaccineProduced(1, 10));
+        assertTrue(Solution.isLabPopular(1));
+        assertEquals(OK, Solution.vaccineProduced(1, 10));
+        assertFalse(Solution.isLabPopular(1));
+        assertEquals(new ArrayList<>(Arrays.asList(2)), Solution.getPopularLabs());
+
+        assertEquals(OK, Solution.vaccineSold(1, 1));
+        assertTrue(Solution.isLabPopular(1));
+        assertEquals(OK, Solution.vaccineProduced(1, 0));
+        assertFalse(Solution.isLabPopular(1));
+
+        assertEquals(OK, Solution.labStoppedProducingVaccine(1, 1));
+        assertTrue(Solution.isLabPopular(1));
+        assertEquals(new ArrayList<>(Arrays.asList(1, 2)), Solution.getPopularLabs());
+
+        assertEquals(OK, Solution.labStoppedProducingVaccine(1, 2));
+        assertEquals(new ArrayList<>(Arrays.asList(2)), Solution.getPopularLabs());
+        assertEquals(OK, Solution.deleteLab(newLab(1, "Technion", "Haifa", true)));
+    }
+
+    @Test
+    public void testTotalWagesFollowJoinsLeavesAndActivity() {
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addLab(newLab(2, "Weizmann", "Rehovot", false));
+        Solution.addEmployee(newEmployee(1, "Alice", "Haifa"));
+        Solution.addEmployee(newEmployee(2, "Bob", "Haifa"));
+
+        assertEquals(0, (int) Solution.getTotalWages(1));
+        assertEquals(OK, Solution.employeeJoinLab(1, 1, 100));
+        assertEquals(OK, Solution.employeeJoinLab(2, 1, 250));
+        assertEquals(OK, Solution.employeeJoinLab(1, 2, 400));
+        assertEquals(350, (int) Solution.getTotalWages(1));
+        assertEquals(0, (int) Solution.getTotalWages(2));
+
+        assertEquals(OK, Solution.employeeLeftLab(1, 2));
+        assertEquals(100, (int) Solution.getTotalWages(1));
+
+        HashMap<Integer, Integer> wages = Solution.getTotalWages(Arrays.asList(1, 2, 3));
+        assertEquals(3, wages.size());
+        assertEquals(100, (int) wages.get(1));
+        assertEquals(0, (int) wages.get(2));
+        assertEquals(0, (int) wages.get(3));
+    }
+
+    @Test
+    public void testCityCountsFollowJoinsAndLeaves() {
+        assertEquals(0, (int) Solution.getBestLab());
+        assertEquals("", Solution.getMostPopularCity());
+
+        Solution.addLab(newLab(1, "Technion", "Haifa", true));
+        Solution.addLab(newLab(2, "Weizmann", "Rehovot", true));
+        Solution.addEmployee(newEmployee(1, "Alice", "Haifa"));
+        Solution.addEmployee(newEmployee(2, "Bob", "Rehovot"));
+        Solution.addEmployee(newEmployee(3, "Carol", "Rehovot"));
+
+        assertEquals(OK, Solution.employeeJoinLab(1, 1, 100));
+        assertEquals(OK, Solution.employeeJoinLab(2, 2, 100));
+        // one same-city employee each, the lower id wins
+        assertEquals(1, (int) Solution.getBestLab());
+        // one membership each, the larger name wins
+        assertEquals("Rehovot", Solution.getMostPopularCity());
+
+        assertEquals(OK, Solution.employeeJoinLab(1, 2, 100));
+        assertEquals(OK, Solution.employeeJoinLab(3, 1, 100));
+        assertEquals(1, (int) Solution.getBestLab());
+        assertEquals("Rehovot", Solution.getMostPopularCity());
+
+        assertEquals(OK, Solution.employeeJoinLab(3, 2, 100));
+        assertEquals(2, (int) Solution.getBestLab());
+
+        assertEquals(OK, Solution.employeeLeftLab(1, 3));
+        assertEquals(OK, Solution.employeeLeftLab(2, 3));
+        assertEquals(OK, Solution.employeeLeftLab(2, 2));
+        assertEquals("Haifa", Solution.getMostPopularCity());
+        assertEquals(1, (int) Solution.getBestLab());
+    }
+}
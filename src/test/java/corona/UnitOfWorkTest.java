@@ -0,0 +1,53 @@
+package corona;
+
+import corona.business.Lab;
+import corona.business.ReturnValue;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UnitOfWorkTest extends AbstractTest {
+
+    @Test
+    public void testCallsCommitTogether() {
+        ReturnValue[] results = new ReturnValue[5];
+        ReturnValue committed = Solution.inTransaction(tx -> {
+            results[0] = Solution.addLab(newLab(1, "Lab", "Haifa", true));
+            results[1] = Solution.addLab(newLab(1, "Lab", "Haifa", true));
+            // the failed call above undid only itself
+            results[2] = Solution.addEmployee(newEmployee(1, "Employee", "Haifa"));
+            results[3] = Solution.addEmployee(newEmployee(2, "Employee", "Haifa"));
+            results[4] = Solution.employeeJoinLab(1, 1, 100);
+            // reads see what the transaction wrote
+            assertEquals("Haifa", Solution.getLabProfile(1).getCity());
+        });
+
+        assertEquals(ReturnValue.OK, committed);
+        assertArrayEquals(new ReturnValue[] { ReturnValue.OK, ReturnValue.ALREADY_EXISTS, ReturnValue.OK,
+                ReturnValue.OK, ReturnValue.OK }, results);
+        assertEquals("Haifa", Solution.getLabProfile(1).getCity());
+        assertEquals(100, (int) Solution.getTotalWages(1));
+    }
+
+    @Test
+    public void testRollbackLeavesNothingBehind() {
+        ReturnValue rolledBack = Solution.inTransaction(tx -> {
+            assertEquals(ReturnValue.OK, Solution.addLab(newLab(1, "Lab", "Haifa", true)));
+            assertEquals(1, Solution.getLabProfile(1).getId());
+            tx.setRollbackOnly();
+        });
+
+        assertEquals(ReturnValue.ERROR, rolledBack);
+        assertEquals(Lab.badLab(), Solution.getLabProfile(1));
+
+        try {
+            Solution.inTransaction(tx -> {
+                Solution.addLab(newLab(2, "Lab", "Haifa", true));
+                throw new IllegalStateException("abort");
+            });
+            fail("the exception should have been rethrown");
+        } catch (IllegalStateException expected) {
+            assertEquals(Lab.badLab(), Solution.getLabProfile(2));
+        }
+    }
+}
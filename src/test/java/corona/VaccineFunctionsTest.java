@@ -0,0 +1,34 @@
+package corona;
+
+import corona.business.VaccineState;
+import org.junit.Test;
+
+import static corona.business.ReturnValue.*;
+import static org.junit.Assert.*;
+
+public class VaccineFunctionsTest extends AbstractTest {
+
+    @Test
+    public void testVaccineSoldWithState() {
+        assertEquals(OK, Solution.addVaccine(newVaccine(1, "Pfizer", 3, 10, 80)));
+
+        VaccineState state = Solution.vaccineSoldWithState(1, 4);
+        assertEquals(OK, state.getReturnValue());
+        assertEquals(6, state.getCost());
+        assertEquals(6, state.getUnits());
+        assertEquals(95, state.getProductivity());
+        assertEquals(12, state.getIncome());
+
+        state = Solution.vaccineProducedWithState(1, 5);
+        assertEquals(OK, state.getReturnValue());
+        assertEquals(3, state.getCost());
+        assertEquals(11, state.getUnits());
+        assertEquals(80, state.getProductivity());
+        assertEquals(12, state.getIncome());
+
+        assertEquals(Solution.getVaccineProfile(1).getCost(), state.getCost());
+        assertEquals(BAD_PARAMS, Solution.vaccineSoldWithState(1, 100).getReturnValue());
+        assertEquals(BAD_PARAMS, Solution.vaccineProducedWithState(1, -1).getReturnValue());
+        assertEquals(ERROR, Solution.vaccineSoldWithState(2, 1).getReturnValue());
+    }
+}
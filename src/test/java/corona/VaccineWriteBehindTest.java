@@ -0,0 +1,111 @@
+package corona;
+
+import corona.business.ReturnValue;
+import corona.business.Vaccine;
+import corona.business.VaccineState;
+import corona.data.DBConnector;
+import corona.data.SalesLedger;
+import corona.data.VaccineWriteBehind;
+import corona.data.WriteBehindMetrics;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import static org.junit.Assert.*;
+
+public class VaccineWriteBehindTest extends AbstractTest {
+
+    private static boolean configured;
+    private static boolean ledgerConfigured;
+
+    // hide AbstractTest's, to run with the buffer on whatever sales.writeBehind and sales.ledger say
+    @BeforeClass
+    public static void createTables() {
+        ledgerConfigured = SalesLedger.isEnabled();
+        SalesLedger.setEnabled(false);
+        configured = VaccineWriteBehind.isEnabled();
+        VaccineWriteBehind.setEnabled(true);
+        Solution.createTables();
+    }
+
+    @AfterClass
+    public static void dropTables() {
+        Solution.dropTables();
+        VaccineWriteBehind.setEnabled(configured);
+        SalesLedger.setEnabled(ledgerConfigured);
+    }
+
+    @Test
+    public void testBufferedEventsAreReadBackAndWritten() throws Exception {
+        Solution.addVaccine(newVaccine(1, "Pfizer", 3, 10, 80));
+        VaccineWriteBehind.flush();
+        long flushedBefore = VaccineWriteBehind.getMetrics().getEventsFlushed();
+
+        assertEquals(ReturnValue.OK, Solution.vaccineSold(1, 4));
+        assertEquals(ReturnValue.OK, Solution.vaccineProduced(1, 5));
+        assertEquals(ReturnValue.OK, Solution.vaccineSold(1, 2));
+        // judged against the buffered state, as the plain UPDATE would be against the row
+        assertEquals(ReturnValue.BAD_PARAMS, Solution.vaccineSold(1, 10));
+        assertEquals(ReturnValue.ERROR, Solution.vaccineSold(2, 1));
+
+        // cost 3 -> 6 -> 3 -> 6, sales 3 * 4 + 3 * 2, read back before anything was written
+        assertVaccine(Solution.getVaccineProfile(1), 6, 9, 95);
+        assertEquals(18, (int) Solution.getIncomeFromVaccine(1));
+
+        VaccineWriteBehind.flush();
+        WriteBehindMetrics metrics = VaccineWriteBehind.getMetrics();
+        assertEquals(0, metrics.getPendingEvents());
+        assertEquals(3, metrics.getEventsFlushed() - flushedBefore);
+
+        try (Connection connection = DBConnector.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT cost, stock, productivity, total_sales FROM vaccines WHERE id = 1");
+             ResultSet resultSet = statement.executeQuery()) {
+            assertTrue(resultSet.next());
+            assertEquals(6, resultSet.getInt(1));
+            assertEquals(9, resultSet.getInt(2));
+            assertEquals(95, resultSet.getInt(3));
+            assertEquals(18, resultSet.getInt(4));
+        }
+    }
+
+    @Test
+    public void testUnitOfWorkWritesAfterTheBuffer() {
+        Solution.addVaccine(newVaccine(1, "Pfizer", 3, 10, 80));
+        assertEquals(ReturnValue.OK, Solution.vaccineSold(1, 4));
+
+        // the buffered sale is written first, and the unit of work reads its own transaction
+        assertEquals(ReturnValue.OK, Solution.inTransaction(unit -> {
+            assertEquals(ReturnValue.OK, Solution.vaccineProduced(1, 5));
+            assertVaccine(Solution.getVaccineProfile(1), 3, 11, 80);
+            assertEquals(12, (int) Solution.getIncomeFromVaccine(1));
+        }));
+
+        assertVaccine(Solution.getVaccineProfile(1), 3, 11, 80);
+        assertEquals(0, VaccineWriteBehind.getMetrics().getPendingEvents());
+    }
+
+    @Test
+    public void testWithStateAnswersFromTheBuffer() {
+        Solution.addVaccine(newVaccine(1, "Pfizer", 3, 10, 80));
+
+        VaccineState state = Solution.vaccineSoldWithState(1, 4);
+        assertEquals(ReturnValue.OK, state.getReturnValue());
+        assertEquals(6, state.getCost());
+        assertEquals(6, state.getUnits());
+        assertEquals(95, state.getProductivity());
+        assertEquals(12, state.getIncome());
+
+        assertEquals(ReturnValue.BAD_PARAMS, Solution.vaccineSoldWithState(1, 10).getReturnValue());
+    }
+
+    private static void assertVaccine(Vaccine vaccine, int cost, int units, int productivity) {
+        assertEquals(cost, vaccine.getCost());
+        assertEquals(units, vaccine.getUnits());
+        assertEquals(productivity, vaccine.getProductivity());
+    }
+}